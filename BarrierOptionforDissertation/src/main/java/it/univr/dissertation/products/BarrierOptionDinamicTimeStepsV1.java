@@ -2,13 +2,12 @@ package it.univr.dissertation.products;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
-import java.util.function.DoubleBinaryOperator;
-import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
 
 
+import it.univr.dissertation.usefulclass.CounterBasedRandomStream;
+import it.univr.dissertation.usefulclass.PathExtremumCache;
 import net.finmath.exception.CalculationException;
-import net.finmath.montecarlo.BrownianBridge;
 import net.finmath.montecarlo.BrownianMotion;
 import net.finmath.montecarlo.BrownianMotionFromMersenneRandomNumbers;
 import net.finmath.montecarlo.RandomVariableFromDoubleArray;
@@ -35,17 +34,26 @@ import net.finmath.time.TimeDiscretizationFromArray;
  */
 public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProduct {
 
+	private static final long DEFAULT_MASTER_SEED = 3141;
+
 	private double maturity;
 	private double strike;
 	private double lowerBarrier;
 	private double upperBarrier;
 	private int underlyingIndex;
 	
-	private Random seedGenerator = new Random();
+	/*
+	 * The seeds of the Brownian motions of the refinements are identified by (path index, time index):
+	 * in this way the result does not depend on the order in which the paths are refined, see setSeed
+	 */
+	private CounterBasedRandomStream randomStream = new CounterBasedRandomStream(DEFAULT_MASTER_SEED);
 	
 	private int numberOfSubIntervals;
 	private double volatility ;
 
+	//see setKeepExtremaAtAllTimes
+	private boolean isKeepingExtremaAtAllTimes = false;
+
 	/**
 	 * It constructs an object representing a barrier, European call option on an underlying X. The underlying is 
 	 * @param maturity The maturity T in the option payoff (X_T-K)1_{B_L <= X_t <= B_U}
@@ -87,24 +95,29 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
 
 		//the "model" part of the simulation
 		ProcessModel modelPart =  ((MonteCarloAssetModel) model).getModel();
-		
-		//we create a Map in order to specify that we want to change the initial value from this "model part"
-		final Map<String, Object> mapForInitialValue = new HashMap<String, Object>();
 
 		TimeDiscretization modelTimeDiscretization = model.getTimeDiscretization();
 		
 		RandomVariable initialValue = model.getAssetValue(0.0, 0);
 		double doubleInitialValue = initialValue.getAverage();
 		
+		// maybe we can do better, but it isn't very relevant 
+		numberOfSubIntervals = 20/ (int) maturity ;
+		
 		//instead of having the usual time step, we divide it in subintervals and we make it start from zero
 		TimeDiscretization timeDiscretizationForSubInterval = new TimeDiscretizationFromArray(0.0, numberOfSubIntervals, modelTimeDiscretization.getTimeStep(0)/numberOfSubIntervals);
 	
 		double bufferLength=  (int) (volatility* (doubleInitialValue)*volatility);
-		// maybe we can do better, but it isn't very relevant 
-		numberOfSubIntervals = 20/ (int) maturity ;
+		
+		double[] timesForChecking = timeDiscretizationForSubInterval.getAsDoubleArray();
 				
-		//a double binary operator defined inside the method: we can do that
-		DoubleBinaryOperator checkCloseBarrier = (x, y) -> {//x is the old realization, y the new one
+		/*
+		 * It returns the realization at the current time of the path pathIndex, given the old realization x and the
+		 * new one y. Note that it does not share any state with the other paths: the map which we use to change
+		 * the initial value is constructed here, and the seed of the Brownian motion only depends on the path and
+		 * on the time index. So it can be called for different paths in parallel.
+		 */
+		RefinementOfPath checkCloseBarrier = (pathIndex, timeIndex, x, y) -> {
 						
 			//if the past realization is far from the lowerBarrier, or is already below the barrier we just return the new one
 			if (x > lowerBarrier+  bufferLength || x < lowerBarrier ) {
@@ -112,13 +125,16 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
 			}
 			
 			//we construct a Brownian motion with only one trajectory defined for the time discretization defined above
-			BrownianMotion oneTrajectoryOfBrownianMotion = new BrownianMotionFromMersenneRandomNumbers(timeDiscretizationForSubInterval, 1, 1, seedGenerator.nextInt());
+			BrownianMotion oneTrajectoryOfBrownianMotion = new BrownianMotionFromMersenneRandomNumbers(timeDiscretizationForSubInterval, 1, 1,
+					randomStream.getSeed(pathIndex, timeIndex));
 
 			//otherwise, we check if the simulated trajectory would go below the barrier if we split the interval
 			/*
 			 * In the next lines we take a model which is the same as the original one but with initial value equal to the
 			 * past realization (which is "close" to the barrier)
 			 */
+			//we create a Map in order to specify that we want to change the initial value from this "model part"
+			final Map<String, Object> mapForInitialValue = new HashMap<String, Object>();
 			mapForInitialValue.put("initialValue", x);
 			ProcessModel newProcessModel = null;
 
@@ -131,11 +147,6 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
 			
 			//and this is the simulation
 			MonteCarloAssetModel simulation = new MonteCarloAssetModel(newProcessModel, oneTrajectoryOfBrownianMotion);
-
-
-			//we construct an object of type MonteCarloBlackScholesModel: it represents the simulation of a Black-Scholes process
-			
-			double[] timesForChecking = timeDiscretizationForSubInterval.getAsDoubleArray();
 			
 			double simulatedValue = x;
 			for (double timeCheck : timesForChecking) {
@@ -159,19 +170,28 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
 
 		//we need it to check the path before maturity
 		TimeDiscretization timeDiscretizationOfTheUnderlying = model.getTimeDiscretization();
+		
+		int numberOfPaths = model.getNumberOfPaths();
 
-		RandomVariable realizationsAtPreviousTime = model.getAssetValue(1, underlyingIndex);
+		//the realizations at the previous and at the current time, swapped at every time
+		double[] realizationsAtPreviousTime = new double[numberOfPaths];
+		double[] realizationsAtCurrentTime = new double[numberOfPaths];
+		RandomVariable realizationsAtFirstTime = model.getAssetValue(1, underlyingIndex);
+		for (int pathIndex = 0; pathIndex < numberOfPaths; pathIndex++) {
+			realizationsAtPreviousTime[pathIndex] = realizationsAtFirstTime.get(pathIndex);
+		}
 		/*
-		 * At the beginning, it is 1 for all simulated trajectories. It will be 0 for those trajectories
-		 * which exit the interval [B_L,B_U]
+		 * It is 1 for the simulated trajectories which stay inside the interval [B_L,B_U] at all the times of the
+		 * time discretization, and 0 for the others: we get it from the running minima and maxima of the paths,
+		 * which are computed only once for the model, see PathExtremumCache. In the loop we only have to set to 0
+		 * the trajectories which go below the barrier in the refinement.
 		 */
-		RandomVariable insideBarriersAtAllTimes = new RandomVariableFromDoubleArray(1.0);
+		PathExtremumCache pathExtrema = isKeepingExtremaAtAllTimes
+				? PathExtremumCache.getPathExtrema(model, underlyingIndex)
+				: PathExtremumCache.getPathExtremaAtMaturity(model, underlyingIndex, maturity);
+		double[] insideBarriersAtAllTimes = new double[numberOfPaths];
+		pathExtrema.fillInsideBarrierIndicator(maturity, lowerBarrier, upperBarrier, insideBarriersAtAllTimes);
 
-		/*
-		 * 1_{B_L <= X_{t_i}(omega_j)<= B_U for all i=0,1,...,k+1} =
-		 * 1_{B_L <= X_{t_{i}}(omega_j)<= B_U for all i=0,1,...,k}1_{B_L <= X_{t_{k+1}}(omega_j)<= B_U}
-		 */
-		DoubleUnaryOperator indicatorFunction = x -> (x>=lowerBarrier & x<=upperBarrier ? 1.0 : 0.0);
 		double currentTime;
 		//we check all times
 		for (int timeIndex = 2; timeIndex < timeDiscretizationOfTheUnderlying.getNumberOfTimes(); timeIndex++) {
@@ -179,22 +199,26 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
 			
 			RandomVariable possibleRealizationsAtCurrentTime = model.getAssetValue(currentTime, underlyingIndex);
 			
-			//we check if it is close to the barrier or not 
-			RandomVariable realizationsAtCurrentTime =
-					realizationsAtPreviousTime.apply(checkCloseBarrier, possibleRealizationsAtCurrentTime);
-			
-			//1_{B_L<=X_{t_{k+1}}(omega_j}<=B_U} for any simulation omega_j if t_{k+1} is the current time
-			RandomVariable realizationsAtCurrentTimeInsideBarrier = realizationsAtCurrentTime.apply(indicatorFunction);
-
+			final int currentTimeIndex = timeIndex;
+			final double[] previous = realizationsAtPreviousTime;
+			final double[] current = realizationsAtCurrentTime;
 			/*
-			 * Here we update insideBarriersAtAllTimes: its old value (that is, the one that is taken at the right) is
-			 * 1_{B_L<=X_{t_i}(omega_j}<=B_U for any 0 <= i <= k} for any simulation omega_j if t_{k+1} is the current time.
-			 * It gets updated by multiplication with realizationsAtCurrentTimeInsideBarrier, so it is now
-			 * 1_{B_L<=X_{t_i}(omega_j}<=B_U for any 0 <= i <= k+1} for any simulation omega_j if t_{k+1} is the current time
+			 * We check if it is close to the barrier or not, for all paths in parallel: every path only writes
+			 * its own elements of the arrays, so the result is the same whatever the number of threads.
+			 * The realizations of the model have already been checked by pathExtrema: here only the refinement
+			 * can take a path below the barrier.
 			 */
-			insideBarriersAtAllTimes = insideBarriersAtAllTimes.mult(realizationsAtCurrentTimeInsideBarrier);
+			IntStream.range(0, numberOfPaths).parallel().forEach(pathIndex -> {
+				double realization = checkCloseBarrier.getRealization(pathIndex, currentTimeIndex,
+						previous[pathIndex], possibleRealizationsAtCurrentTime.get(pathIndex));
+				current[pathIndex] = realization;
+				if (realization < lowerBarrier) {
+					insideBarriersAtAllTimes[pathIndex] = 0.0;
+				}
+			});
 
-			realizationsAtPreviousTime =  new RandomVariableFromDoubleArray(realizationsAtCurrentTime);
+			realizationsAtPreviousTime = current;
+			realizationsAtCurrentTime = previous;
 		}
 
 		/*
@@ -209,7 +233,7 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
 		// The payoff: values = max(underlying - strike, 0) = V(T) = max(X(T)-K,0)
 		RandomVariable values = underlyingAtMaturity.sub(strike).floor(0.0);
 
-		values = values.mult(insideBarriersAtAllTimes);
+		values = values.mult(new RandomVariableFromDoubleArray(maturity, insideBarriersAtAllTimes));
 		// Discounting...
 		final RandomVariable numeraireAtMaturity	= model.getNumeraire(maturity);
 		final RandomVariable monteCarloWeights		= model.getMonteCarloWeights(maturity);
@@ -227,5 +251,24 @@ public class BarrierOptionDinamicTimeStepsV1 extends AbstractAssetMonteCarloProd
     public void setVolatility(double volatility) {
         this.volatility = volatility;
     }
+
+    // If true, the running extrema of the paths are stored at all times and not only at maturity, see PathExtremumCache
+    public void setKeepExtremaAtAllTimes(boolean isKeepingExtremaAtAllTimes) {
+        this.isKeepingExtremaAtAllTimes = isKeepingExtremaAtAllTimes;
+    }
+
+    // Setter for the master seed of the random numbers of the refinements: same seed, same price
+    public void setSeed(long masterSeed) {
+        randomStream = new CounterBasedRandomStream(masterSeed);
+    }
+
+    /*
+     * The refinement of the realization of one path at one time: differently from a DoubleBinaryOperator,
+     * it also knows which path and time it is working on.
+     */
+    @FunctionalInterface
+    private interface RefinementOfPath {
+    	double getRealization(int pathIndex, int timeIndex, double oldRealization, double newRealization);
+    }
 }
 
@@ -1,11 +1,8 @@
 package it.univr.dissertation.products;
 
-
-import java.util.Random;
-import java.util.function.DoubleBinaryOperator;
-import java.util.function.DoubleUnaryOperator;
-
-
+import it.univr.dissertation.usefulclass.CounterBasedRandomStream;
+import it.univr.dissertation.usefulclass.NearBarrierRefinementEngine;
+import it.univr.dissertation.usefulclass.PathExtremumCache;
 import net.finmath.exception.CalculationException;
 
 import net.finmath.montecarlo.RandomVariableFromDoubleArray;
@@ -13,26 +10,32 @@ import net.finmath.montecarlo.assetderivativevaluation.AssetModelMonteCarloSimul
 
 import net.finmath.montecarlo.assetderivativevaluation.products.AbstractAssetMonteCarloProduct;
 
-import net.finmath.montecarlo.templatemethoddesign.assetderivativevaluation.MonteCarloBlackScholesModel2;
-
 import net.finmath.stochastic.RandomVariable;
 import net.finmath.time.TimeDiscretization;
-import net.finmath.time.TimeDiscretizationFromArray;
 
 
 public class BarrierOptionDinamicTimeStepsV2 extends AbstractAssetMonteCarloProduct {
 
+	private static final long DEFAULT_MASTER_SEED = 3141;
+
 	private double maturity;
 	private double strike;
 	private double lowerBarrier;
 	private double upperBarrier;
 	private int underlyingIndex;
 	
-	private Random seedGenerator = new Random();
+	/*
+	 * The random numbers of the refinements are identified by (path index, time index, sub-interval index):
+	 * in this way the result does not depend on the order in which the paths are refined, see setSeed
+	 */
+	private CounterBasedRandomStream randomStream = new CounterBasedRandomStream(DEFAULT_MASTER_SEED);
 	
 	private int numberOfSubIntervals ;
 
 	private double volatility ;
+
+	//see setKeepExtremaAtAllTimes
+	private boolean isKeepingExtremaAtAllTimes = false;
 	private double riskFreeRate ;
 
 	/**
@@ -82,45 +85,20 @@ public class BarrierOptionDinamicTimeStepsV2 extends AbstractAssetMonteCarloProd
 		// maybe we can do better, but it isn't very relevant 
 		numberOfSubIntervals = 20/ (int) maturity ;
 		
-		//instead of having the usual time step, we divide it in subintervals and we make it start from zero
-		TimeDiscretization timeDiscretizationForSubInterval = new TimeDiscretizationFromArray(0.0, numberOfSubIntervals, modelTimeDiscretization.getTimeStep(0)/numberOfSubIntervals);
+		//instead of having the usual time step, we divide it in subintervals
+		double subIntervalLength = modelTimeDiscretization.getTimeStep(0)/numberOfSubIntervals;
 				
 		double bufferLength=  (int) (volatility* (doubleInitialValue)*0.34);
+		
+		int numberOfPaths = model.getNumberOfPaths();
 			
-		//a double binary operator defined inside the method: we can do that
-		DoubleBinaryOperator checkCloseBarrier = (x, y) -> {//x is the old realization, y the new one
-			
-			//if the past realization is far from the lowerBarrier, or is already below the barrier we just return the new one
-			if (x > lowerBarrier+ bufferLength || x < lowerBarrier ) {
-				return y;
-			}
-			
-			//and this is the simulation
-			MonteCarloBlackScholesModel2 simulation = new MonteCarloBlackScholesModel2(
-					timeDiscretizationForSubInterval,
-					1,
-					x,
-					riskFreeRate,
-					volatility,
-					seedGenerator.nextInt());
-			
-			double[] timesForChecking = timeDiscretizationForSubInterval.getAsDoubleArray();
-			
-			double simulatedValue;
-			
-			for (double timeCheck : timesForChecking) {
-				//we have only one trajectory, so it's a double
-				simulatedValue = simulation.getAssetValue(timeCheck, underlyingIndex).doubleValue();
-			
-				//if it goes below the barrier, we return it: so when we call this function we have something below the barrier 
-				if (simulatedValue < lowerBarrier) {
-			//		System.out.println("it's over" + simulatedValue);
-					return simulatedValue;
-				}	
-			}
-			//if it has not gone below the barrier, we return the new value we would have had from the beginning
-			return y;
-		};
+		/*
+		 * It takes care of the paths close to the barrier: if the past realization is close to the lowerBarrier,
+		 * we check if the simulated trajectory would go below the barrier if we split the interval. All the
+		 * paths close to the barrier at a given time are simulated together, see NearBarrierRefinementEngine.
+		 */
+		NearBarrierRefinementEngine refinementEngine = new NearBarrierRefinementEngine(lowerBarrier, bufferLength,
+				riskFreeRate, volatility, numberOfSubIntervals, subIntervalLength, numberOfPaths);
 
 		//time discretization: t_0=0<t_1<t_2<...<t_n=T
 		//omega_j -> (X_{t_n}(omega_j)-K)^+ 1_{B_L <= X_{t_i}(omega_j)<= B_U for all i=0,1,...,n} 
@@ -128,43 +106,44 @@ public class BarrierOptionDinamicTimeStepsV2 extends AbstractAssetMonteCarloProd
 		//we need it to check the path before maturity
 		TimeDiscretization timeDiscretizationOfTheUnderlying = model.getTimeDiscretization();
 
-		RandomVariable realizationsAtPreviousTime = model.getAssetValue(1, underlyingIndex);
+		/*
+		 * The realizations at the previous and at the current time: these two buffers are swapped at every time,
+		 * so that no new array or RandomVariable is constructed inside the loop
+		 */
+		double[] realizationsAtPreviousTime = new double[numberOfPaths];
+		double[] realizationsAtCurrentTime = new double[numberOfPaths];
+		copyRealizations(model.getAssetValue(1, underlyingIndex), realizationsAtPreviousTime);
 		
 	        
 		/*
-		 * At the beginning, it is 1 for all simulated trajectories. It will be 0 for those trajectories
-		 * which exit the interval [B_L,B_U]
+		 * It is 1 for the simulated trajectories which stay inside the interval [B_L,B_U] at all the times of the
+		 * time discretization, and 0 for the others: we get it from the running minima and maxima of the paths,
+		 * which are computed only once for the model, see PathExtremumCache. In the loop we only have to set to 0
+		 * the trajectories which go below the barrier in the refinement.
 		 */
-		RandomVariable insideBarriersAtAllTimes = new RandomVariableFromDoubleArray(1.0);
+		PathExtremumCache pathExtrema = isKeepingExtremaAtAllTimes
+				? PathExtremumCache.getPathExtrema(model, underlyingIndex)
+				: PathExtremumCache.getPathExtremaAtMaturity(model, underlyingIndex, maturity);
+		double[] insideBarriersAtAllTimes = new double[numberOfPaths];
+		pathExtrema.fillInsideBarrierIndicator(maturity, lowerBarrier, upperBarrier, insideBarriersAtAllTimes);
 
-		/*
-		 * 1_{B_L <= X_{t_i}(omega_j)<= B_U for all i=0,1,...,k+1} =
-		 * 1_{B_L <= X_{t_{i}}(omega_j)<= B_U for all i=0,1,...,k}1_{B_L <= X_{t_{k+1}}(omega_j)<= B_U}
-		 */
-		DoubleUnaryOperator indicatorFunction = x -> (x>=lowerBarrier & x<=upperBarrier ? 1.0 : 0.0);
 		double currentTime;
 		//we check all times
 		for (int timeIndex = 2; timeIndex < timeDiscretizationOfTheUnderlying.getNumberOfTimes(); timeIndex++) {
 			currentTime = Math.min(timeDiscretizationOfTheUnderlying.getTime(timeIndex), maturity);
 			
-			RandomVariable possibleRealizationsAtCurrentTime = model.getAssetValue(currentTime, underlyingIndex);
-			
-			//we check if it is close to the barrier or not 
-			RandomVariable realizationsAtCurrentTime =
-					realizationsAtPreviousTime.apply(checkCloseBarrier, possibleRealizationsAtCurrentTime);
+			copyRealizations(model.getAssetValue(currentTime, underlyingIndex), realizationsAtCurrentTime);
 			
-			//1_{B_L<=X_{t_{k+1}}(omega_j}<=B_U} for any simulation omega_j if t_{k+1} is the current time
-			RandomVariable realizationsAtCurrentTimeInsideBarrier = realizationsAtCurrentTime.apply(indicatorFunction);
-
 			/*
-			 * Here we update insideBarriersAtAllTimes: its old value (that is, the one that is taken at the right) is
-			 * 1_{B_L<=X_{t_i}(omega_j}<=B_U for any 0 <= i <= k} for any simulation omega_j if t_{k+1} is the current time.
-			 * It gets updated by multiplication with realizationsAtCurrentTimeInsideBarrier, so it is now
-			 * 1_{B_L<=X_{t_i}(omega_j}<=B_U for any 0 <= i <= k+1} for any simulation omega_j if t_{k+1} is the current time
+			 * We check if it is close to the barrier or not: the paths which go below the barrier in the refinement
+			 * get 0 in insideBarriersAtAllTimes
 			 */
-			insideBarriersAtAllTimes = insideBarriersAtAllTimes.mult(realizationsAtCurrentTimeInsideBarrier);
+			refinementEngine.refine(realizationsAtPreviousTime, realizationsAtCurrentTime, randomStream, timeIndex,
+					insideBarriersAtAllTimes);
 
-			realizationsAtPreviousTime =  new RandomVariableFromDoubleArray(realizationsAtCurrentTime);
+			double[] swap = realizationsAtPreviousTime;
+			realizationsAtPreviousTime = realizationsAtCurrentTime;
+			realizationsAtCurrentTime = swap;
 		}
 
 		/*
@@ -179,7 +158,7 @@ public class BarrierOptionDinamicTimeStepsV2 extends AbstractAssetMonteCarloProd
 		// The payoff: values = max(underlying - strike, 0) = V(T) = max(X(T)-K,0)
 		RandomVariable values = underlyingAtMaturity.sub(strike).floor(0.0);
 
-		values = values.mult(insideBarriersAtAllTimes);
+		values = values.mult(new RandomVariableFromDoubleArray(maturity, insideBarriersAtAllTimes));
 		// Discounting...
 		final RandomVariable numeraireAtMaturity	= model.getNumeraire(maturity);
 		final RandomVariable monteCarloWeights		= model.getMonteCarloWeights(maturity);
@@ -193,6 +172,15 @@ public class BarrierOptionDinamicTimeStepsV2 extends AbstractAssetMonteCarloProd
 		return values;
 
 	}
+	/*
+	 * It copies the realizations of the RandomVariable in the given buffer
+	 */
+	private static void copyRealizations(RandomVariable randomVariable, double[] buffer) {
+		for (int pathIndex = 0; pathIndex < buffer.length; pathIndex++) {
+			buffer[pathIndex] = randomVariable.get(pathIndex);
+		}
+	}
+
     // Setter for volatility
     public void setVolatility(double volatility) {
         this.volatility = volatility;
@@ -203,5 +191,15 @@ public class BarrierOptionDinamicTimeStepsV2 extends AbstractAssetMonteCarloProd
         this.riskFreeRate = riskFreeRate;
     }
 
+    // If true, the running extrema of the paths are stored at all times and not only at maturity, see PathExtremumCache
+    public void setKeepExtremaAtAllTimes(boolean isKeepingExtremaAtAllTimes) {
+        this.isKeepingExtremaAtAllTimes = isKeepingExtremaAtAllTimes;
+    }
+
+    // Setter for the master seed of the random numbers of the refinements: same seed, same price
+    public void setSeed(long masterSeed) {
+        randomStream = new CounterBasedRandomStream(masterSeed);
+    }
+
 
 }
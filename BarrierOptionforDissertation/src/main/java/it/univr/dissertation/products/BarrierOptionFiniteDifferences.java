@@ -1,6 +1,9 @@
 package it.univr.dissertation.products;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.DoubleUnaryOperator;
+import java.util.stream.Collectors;
 
 import it.univr.dissertation.usefulclass.FDMThetaMethodForKnockOutOption;
 import net.finmath.finitedifference.models.FiniteDifference1DBoundary;
@@ -14,6 +17,20 @@ public class BarrierOptionFiniteDifferences implements FiniteDifference1DProduct
 	private final double upperBarrier;
 	private final double theta;
 	private final double callorPut; 
+	//see setTridiagonalSolver
+	private boolean isUsingTridiagonalSolver = false;
+	//see setTimeHomogeneousCoefficients
+	private boolean isTimeHomogeneous = false;
+	//see setNonUniformGrid
+	private boolean isUsingNonUniformGrid = false;
+	//see setRannacherSteps, setAdaptiveTimeStepping and setTimeStepTolerance
+	private int numberOfRannacherSteps = 0;
+	private boolean isUsingAdaptiveTimeStepping = false;
+	private double timeStepTolerance = 1E-4;
+	//see setMonitoringTimes
+	private double[] monitoringTimes = new double[0];
+	//the number of time steps of the solver in the last call of getValue
+	private int numberOfTimeSteps;
 
 	/**
 	 * It constructs an object representing a barrier, European option on an underlying X. The underlying is 
@@ -43,22 +60,26 @@ public class BarrierOptionFiniteDifferences implements FiniteDifference1DProduct
 		 */
 		final FiniteDifference1DBoundary boundary = this;
 		final FDMThetaMethodForKnockOutOption solver = new FDMThetaMethodForKnockOutOption(model, boundary, maturity, theta, 0, Long.MAX_VALUE);
+		configureSolver(solver);
 		
+		final double[][] stockAndOptionPrice;
 		if (callorPut == 1) {
 			
-			return solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
+			stockAndOptionPrice = solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
 				@Override
 				public double applyAsDouble(final double assetValue) {
 					return Math.max(assetValue - strike, 0);
 				}
 			});}
-			else return solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
+			else stockAndOptionPrice = solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
 				@Override
 				public double applyAsDouble(final double assetValue) {
 					return Math.max(strike - assetValue, 0);
 				}
 		
 		});
+		numberOfTimeSteps = solver.getNumberOfTimeSteps();
+		return stockAndOptionPrice;
 	}
 
 	@Override
@@ -69,12 +90,14 @@ public class BarrierOptionFiniteDifferences implements FiniteDifference1DProduct
 		 */
 		final FiniteDifference1DBoundary boundary = this;
 		final FDMThetaMethodForKnockOutOption solver = new FDMThetaMethodForKnockOutOption(model, boundary, maturity, theta, lowerBarrier, upperBarrier);
+		configureSolver(solver);
 		
+		final double[][] stockAndOptionPrice;
 		if (callorPut == 1) {
 		
 		System.out.println( "You set Call Option ");
 		
-		return solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
+		stockAndOptionPrice = solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
 			
 		
 			@Override
@@ -84,30 +107,210 @@ public class BarrierOptionFiniteDifferences implements FiniteDifference1DProduct
 		});}
 		else {
 			System.out.println( "You set Put Option");
-			return solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
+			stockAndOptionPrice = solver.getValue(evaluationTime, maturity, new DoubleUnaryOperator() {
 		
 			
 			@Override
 			public double applyAsDouble(final double assetValue) {
 				return Math.max(strike - assetValue, 0);
 			}
-		});}}
+		});}
+		numberOfTimeSteps = solver.getNumberOfTimeSteps();
+		return stockAndOptionPrice;
+	}
 
 			
 	
+	/**
+	 * It sets if the solver of the option uses the Thomas algorithm, see FDMThetaMethodForKnockOutOption.setTridiagonalSolver
+	 *
+	 * @param isUsingTridiagonalSolver true if the tridiagonal solver is used
+	 */
+	public void setTridiagonalSolver(boolean isUsingTridiagonalSolver) {
+		this.isUsingTridiagonalSolver = isUsingTridiagonalSolver;
+	}
+
+	/**
+	 * It sets if the local volatility is time homogeneous for the solver of the option, see
+	 * FDMThetaMethodForKnockOutOption.setTimeHomogeneousCoefficients
+	 *
+	 * @param isTimeHomogeneous true if the local volatility does not depend on time
+	 */
+	public void setTimeHomogeneousCoefficients(boolean isTimeHomogeneous) {
+		this.isTimeHomogeneous = isTimeHomogeneous;
+	}
+
+	/**
+	 * It sets if the solver of the option uses the non-uniform grid, see FDMThetaMethodForKnockOutOption.setNonUniformGrid.
+	 * The strike of the option is given as concentration point.
+	 *
+	 * @param isUsingNonUniformGrid true if the non-uniform grid is used
+	 */
+	public void setNonUniformGrid(boolean isUsingNonUniformGrid) {
+		this.isUsingNonUniformGrid = isUsingNonUniformGrid;
+	}
+
+	/**
+	 * It sets the number of Rannacher steps of the solver of the option, see FDMThetaMethodForKnockOutOption.setRannacherSteps
+	 *
+	 * @param numberOfRannacherSteps the number of Rannacher steps
+	 */
+	public void setRannacherSteps(int numberOfRannacherSteps) {
+		this.numberOfRannacherSteps = numberOfRannacherSteps;
+	}
+
+	/**
+	 * It sets if the solver of the option uses adaptive time steps, see FDMThetaMethodForKnockOutOption.setAdaptiveTimeStepping
+	 *
+	 * @param isUsingAdaptiveTimeStepping true if the time steps are adaptive
+	 */
+	public void setAdaptiveTimeStepping(boolean isUsingAdaptiveTimeStepping) {
+		this.isUsingAdaptiveTimeStepping = isUsingAdaptiveTimeStepping;
+	}
+
+	/**
+	 * It sets the tolerance of the adaptive time steps of the solver of the option, see
+	 * FDMThetaMethodForKnockOutOption.setTimeStepTolerance
+	 *
+	 * @param timeStepTolerance the tolerance for the local error of a time step
+	 */
+	public void setTimeStepTolerance(double timeStepTolerance) {
+		this.timeStepTolerance = timeStepTolerance;
+	}
+
+	/**
+	 * It sets the monitoring times of the barriers for the solver of the option, see
+	 * FDMThetaMethodForKnockOutOption.setMonitoringTimes
+	 *
+	 * @param monitoringTimes the monitoring times, between 0 and the maturity
+	 */
+	public void setMonitoringTimes(double... monitoringTimes) {
+		this.monitoringTimes = monitoringTimes.clone();
+	}
+
+	/*
+	 * It gives the solver the settings of this option, and the strike as the point around which the non-uniform grid
+	 * is refined. It is also used by BarrierOptionFiniteDifferencesPortfolio, so that the options of a portfolio are
+	 * valued with their own settings.
+	 */
+	void configureSolver(FDMThetaMethodForKnockOutOption solver) {
+		solver.setTridiagonalSolver(isUsingTridiagonalSolver);
+		solver.setTimeHomogeneousCoefficients(isTimeHomogeneous);
+		solver.setNonUniformGrid(isUsingNonUniformGrid);
+		solver.setRannacherSteps(numberOfRannacherSteps);
+		solver.setAdaptiveTimeStepping(isUsingAdaptiveTimeStepping);
+		solver.setTimeStepTolerance(timeStepTolerance);
+		solver.setMonitoringTimes(monitoringTimes);
+		solver.setGridConcentrationPoints(strike);
+	}
+
+	/*
+	 * It returns the settings which determine the grid and the time steps of the solver, see configureSolver: two
+	 * options with equal maturity, barriers, theta and settings have the same grid and the same matrices. Since with
+	 * the non-uniform grid the grid also depends on the strike, in this case the strike is one of the settings.
+	 */
+	List<Object> getSolverSettings() {
+		return Arrays.asList(maturity, lowerBarrier, upperBarrier, theta, isUsingTridiagonalSolver, isTimeHomogeneous,
+				isUsingNonUniformGrid, isUsingNonUniformGrid ? strike : Double.NaN, numberOfRannacherSteps,
+				isUsingAdaptiveTimeStepping, timeStepTolerance, Arrays.stream(monitoringTimes).boxed().collect(Collectors.toList()));
+	}
+
+	/**
+	 * It returns the number of time steps done by the solver in the last call of getValue or getValueWithoutBarrier
+	 * @return the number of time steps of the last valuation
+	 */
+	public int getNumberOfTimeSteps() {
+		return numberOfTimeSteps;
+	}
+
+	/**
+	 * It returns the maturity T of the option
+	 * @return the maturity T of the option
+	 */
+	public double getMaturity() {
+		return maturity;
+	}
+
+	/**
+	 * It returns the strike K of the option
+	 * @return the strike K of the option
+	 */
+	public double getStrike() {
+		return strike;
+	}
+
+	/**
+	 * It returns the lower barrier B_L of the option
+	 * @return the lower barrier B_L of the option
+	 */
+	public double getLowerBarrier() {
+		return lowerBarrier;
+	}
+
+	/**
+	 * It returns the upper barrier B_U of the option
+	 * @return the upper barrier B_U of the option
+	 */
+	public double getUpperBarrier() {
+		return upperBarrier;
+	}
+
+	/**
+	 * It returns the parameter theta of the scheme
+	 * @return the parameter theta of the scheme
+	 */
+	public double getTheta() {
+		return theta;
+	}
+
+	/**
+	 * It returns 1 if the option is a call, -1 if it is a put
+	 * @return 1 if the option is a call, -1 if it is a put
+	 */
+	public double getCallOrPutSign() {
+		return callorPut;
+	}
+
 	/*
 	 * Implementation of the interface:
 	 * @see net.finmath.finitedifference.products.FiniteDifference1DBoundary#getValueAtLowerBoundary(net.finmath.finitedifference.models.FDMBlackScholesModel, double, double)
+	 *
+	 * With continuous monitoring the grid ends at the barriers, where the option is worth nothing. With discrete
+	 * monitoring, instead, the grid ends at forward +- numStandardDeviations, usually beyond the barriers. If the end
+	 * of the grid is outside the barriers and there is still a monitoring time, the option is knocked out there, so it
+	 * is worth nothing. Otherwise the end is far from the strike and the option is worth as the vanilla one: 0 at the
+	 * lower end and S - K e^{-r(T-t)} at the upper end for a call, K e^{-r(T-t)} - S at the lower end and 0 at the
+	 * upper end for a put.
 	 */
 
 	@Override
 	public double getValueAtLowerBoundary(final FiniteDifference1DModel model, final double currentTime, final double stockPrice) {
-		return 0;
+		if (monitoringTimes.length == 0 || callorPut == 1
+				|| (stockPrice < lowerBarrier && isMonitoredFrom(currentTime))) {
+			return 0;
+		}
+		return Math.max(strike * Math.exp(-model.getRiskFreeRate() * (maturity - currentTime)) - stockPrice, 0);
 	}
 
 	@Override
 	public double getValueAtUpperBoundary(final FiniteDifference1DModel model, final double currentTime, final double stockPrice) {
-		return 0;
+		if (monitoringTimes.length == 0 || callorPut == -1
+				|| (stockPrice > upperBarrier && isMonitoredFrom(currentTime))) {
+			return 0;
+		}
+		return Math.max(stockPrice - strike * Math.exp(-model.getRiskFreeRate() * (maturity - currentTime)), 0);
+	}
+
+	/*
+	 * It returns true if at least one of the monitoring times is not before currentTime
+	 */
+	private boolean isMonitoredFrom(final double currentTime) {
+		for (final double monitoringTime : monitoringTimes) {
+			if (monitoringTime >= currentTime) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
 
@@ -0,0 +1,96 @@
+package it.univr.dissertation.products;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+import it.univr.dissertation.usefulclass.FDMThetaMethodForKnockOutOption;
+import net.finmath.finitedifference.models.FiniteDifference1DBoundary;
+import net.finmath.finitedifference.models.FiniteDifference1DModel;
+
+/**
+ * This class computes the finite difference prices of a portfolio of knock out options, given as objects of type
+ * BarrierOptionFiniteDifferences, on the same underlying.
+ * If we call getValue for every option, the solver builds and factorizes its matrices again for every option.
+ * Here instead the options with the same maturity, barriers, theta and settings of the solver, which only differ in
+ * the strike or in being call or put, are valued together: they have the same grid and the same matrices, so we go
+ * backwards in time only once, and at every time step the matrix is factorized once and then used for the payoffs
+ * of all of them, as a linear system with many right hand sides. See FDMThetaMethodForKnockOutOption.getValues.
+ * Every option is valued with its own settings, the ones given by its setters: since with the non-uniform grid the
+ * nodes are refined around the strike, in this case only the options with the same strike are valued together.
+ */
+public class BarrierOptionFiniteDifferencesPortfolio {
+
+	private final List<BarrierOptionFiniteDifferences> options;
+
+	/**
+	 * It constructs an object representing a portfolio of knock out options.
+	 *
+	 * @param options the knock out options of the portfolio
+	 */
+	public BarrierOptionFiniteDifferencesPortfolio(List<BarrierOptionFiniteDifferences> options) {
+		this.options = new ArrayList<BarrierOptionFiniteDifferences>(options);
+	}
+
+	/**
+	 * It returns the values of the options of the portfolio, in the same order of the list given in the constructor.
+	 * For every option, it is the same array we would get by calling its getValue: its first element is the array
+	 * of the stock prices of the grid and the second one is the array of the values of the option at these prices.
+	 * The options valued together share the same array of stock prices.
+	 *
+	 * @param evaluationTime the evaluation time: only 0 is supported
+	 * @param model the finite difference model of the underlying
+	 * @return the array of the values of the options on their grids
+	 */
+	public double[][][] getValues(double evaluationTime, FiniteDifference1DModel model) {
+
+		double[][][] values = new double[options.size()][][];
+
+		//the options which can be valued together, grouped by maturity, barriers, theta and settings of the solver
+		LinkedHashMap<List<Object>, List<Integer>> optionIndicesForGrid = new LinkedHashMap<List<Object>, List<Integer>>();
+		for (int optionIndex = 0; optionIndex < options.size(); optionIndex++) {
+			List<Object> key = options.get(optionIndex).getSolverSettings();
+			optionIndicesForGrid.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(optionIndex);
+		}
+
+		for (List<Integer> optionIndices : optionIndicesForGrid.values()) {
+			valueOptionsOnSameGrid(evaluationTime, model, optionIndices, values);
+		}
+		return values;
+	}
+
+	/*
+	 * It values all the given options, which have the same maturity, barriers, theta and settings, with a single
+	 * backward sweep.
+	 */
+	private void valueOptionsOnSameGrid(double evaluationTime, FiniteDifference1DModel model,
+			List<Integer> optionIndices, double[][][] values) {
+
+		/*
+		 * The settings of the solver are the same for all the options, so we can take the ones of the first option.
+		 * The strike around which the non-uniform grid is refined is also the same, when the grid is non-uniform.
+		 * The boundary conditions, instead, depend on the payoff with discrete monitoring: every option gives its own.
+		 */
+		BarrierOptionFiniteDifferences firstOption = options.get(optionIndices.get(0));
+		double maturity = firstOption.getMaturity();
+		FDMThetaMethodForKnockOutOption solver = new FDMThetaMethodForKnockOutOption(model, firstOption, maturity,
+				firstOption.getTheta(), firstOption.getLowerBarrier(), firstOption.getUpperBarrier());
+		firstOption.configureSolver(solver);
+
+		DoubleUnaryOperator[] payoffs = new DoubleUnaryOperator[optionIndices.size()];
+		FiniteDifference1DBoundary[] boundaryConditions = new FiniteDifference1DBoundary[optionIndices.size()];
+		for (int k = 0; k < optionIndices.size(); k++) {
+			BarrierOptionFiniteDifferences option = options.get(optionIndices.get(k));
+			double strike = option.getStrike();
+			double callOrPutSign = option.getCallOrPutSign();
+			payoffs[k] = assetValue -> Math.max((assetValue - strike) * callOrPutSign, 0);
+			boundaryConditions[k] = option;
+		}
+
+		double[][] stockAndOptionPrices = solver.getValues(evaluationTime, maturity, payoffs, boundaryConditions);
+		for (int k = 0; k < optionIndices.size(); k++) {
+			values[optionIndices.get(k)] = new double[][] {stockAndOptionPrices[0], stockAndOptionPrices[k + 1]};
+		}
+	}
+}
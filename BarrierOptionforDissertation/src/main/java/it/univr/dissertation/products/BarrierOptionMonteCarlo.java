@@ -1,13 +1,15 @@
 package it.univr.dissertation.products;
 
-import java.util.function.DoubleUnaryOperator;
+import java.util.Arrays;
 
+import it.univr.dissertation.usefulclass.BarrierPathMonitor;
+import it.univr.dissertation.usefulclass.MemoryMappedPathStore;
+import it.univr.dissertation.usefulclass.PathExtremumCache;
 import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.RandomVariableFromDoubleArray;
 import net.finmath.montecarlo.assetderivativevaluation.AssetModelMonteCarloSimulationModel;
 import net.finmath.montecarlo.assetderivativevaluation.products.AbstractAssetMonteCarloProduct;
 import net.finmath.stochastic.RandomVariable;
-import net.finmath.time.TimeDiscretization;
 
 public class BarrierOptionMonteCarlo extends AbstractAssetMonteCarloProduct {
 	
@@ -19,6 +21,13 @@ public class BarrierOptionMonteCarlo extends AbstractAssetMonteCarloProduct {
 	boolean IsKnockOut;
 	private double callOrPutSign;
 	
+	//used only if the barrier is continuously monitored, see setContinuousMonitoring
+	private boolean isContinuouslyMonitored = false;
+	private double volatility;
+
+	//see setKeepExtremaAtAllTimes
+	private boolean isKeepingExtremaAtAllTimes = false;
+	
 	/**
 	 * It constructs an object representing a barrier, European option on an underlying X. The underlying is 
 	 * @param maturity The maturity T in the option payoff 
@@ -65,36 +74,31 @@ public class BarrierOptionMonteCarlo extends AbstractAssetMonteCarloProduct {
 			throws CalculationException {
 		
 		
-		//we need it to check the path before maturity
-		TimeDiscretization timeDiscretizationOfTheUnderlying = model.getTimeDiscretization();
-		double[] discretizedTimes = timeDiscretizationOfTheUnderlying.getAsDoubleArray();
-		
 		/*
 		 * At the beginning, it is 1 for all simulated trajectories. It will be 0 for those trajectories
-		 * which exit the interval [B_L,B_U]
-		 * We construct it like "insideBarrierAllTime", and if we have an Knock-In it will be like "touchBarrierAtLeastOnce"
+		 * which exit the interval [B_L,B_U]. Differently from the Finmath way of doing it (apply(indicatorFunction)
+		 * and then mult(...) at every time) we fill a single double[] buffer path by path, so that we do not
+		 * construct a new RandomVariable for every time step.
 		 */
-		RandomVariable inOrOutBarrier = new RandomVariableFromDoubleArray(1.0);
-		
-		DoubleUnaryOperator indicatorFunction = x -> (x>=lowerBarrier & x<=upperBarrier ? 1.0 : 0.0);
-		
-		//we check all times
-		for (double currentTime : discretizedTimes) {
-			currentTime = Math.min(currentTime, maturity);
-			
-			//this will give an object of type RandomVariable representing the array 
-			RandomVariable realizationsAtCurrentTime = model.getAssetValue(currentTime, underlyingIndex);
-			//we check if the realizations of underlying exit the interval [B_L,B_U] 
-			RandomVariable realizationsAtCurrentTimeInsideBarrier = realizationsAtCurrentTime.apply(indicatorFunction);
-			
+		double[] inOrOutBarrier;
+		if (isContinuouslyMonitored) {
+			BarrierPathMonitor barrierPathMonitor = new BarrierPathMonitor(lowerBarrier, upperBarrier);
+			/*
+			 * Here the elements are not only 0 or 1: they are the probabilities that the trajectories do not exit
+			 * [B_L,B_U] also between the times of the time discretization, see BarrierPathMonitor
+			 */
+			inOrOutBarrier = barrierPathMonitor.getSurvivalProbabilities(model, underlyingIndex, maturity, volatility);
+		}
+		else {
 			/*
-			 * Here we update inOrOutBarrier: its old value (that is, the one that is taken at the right).
-			 * It gets updated by multiplication with realizationsAtCurrentTimeInsideBarrier, so when the loop finish 
-			 * it represent if the path stay in interval for every time. 
-			 * It will be like [0 , 0 , 1 , 1,....] "0" means that the path exit the interval [B_L,B_U].
-			 * In this case "inOrOutBarrier" represents "insideBarrierAllTime"
+			 * The running minima and maxima of the paths are computed only once for the model and shared by all
+			 * the products valued on it, see PathExtremumCache: so here we only have two comparisons per path
 			 */
-			inOrOutBarrier = inOrOutBarrier.mult(realizationsAtCurrentTimeInsideBarrier);
+			PathExtremumCache pathExtrema = isKeepingExtremaAtAllTimes
+					? PathExtremumCache.getPathExtrema(model, underlyingIndex)
+					: PathExtremumCache.getPathExtremaAtMaturity(model, underlyingIndex, maturity);
+			inOrOutBarrier = new double[model.getNumberOfPaths()];
+			pathExtrema.fillInsideBarrierIndicator(maturity, lowerBarrier, upperBarrier, inOrOutBarrier);
 		}
 
 		/*
@@ -105,25 +109,25 @@ public class BarrierOptionMonteCarlo extends AbstractAssetMonteCarloProduct {
 		// Get X(T)
 		final RandomVariable underlyingAtMaturity	= model.getAssetValue(maturity, underlyingIndex);
 
-		// The payoff: values = max(underlying - strike, 0) = V(T) = max(X(T)-K,0) for Call
-		// The payoff: values = max(strike - underlying, 0) = V(T) = max(K -X(T),0) for Put
-		RandomVariable values = underlyingAtMaturity.sub(strike).mult(callOrPutSign).floor(0);
-		
-		/* If the option is "Knock-In" we check if the trajectories touch the barrier,
-		* we use the array inOrOutBarrier and we replace the 0 with 1 and vice versa
-		* in this case "inOrOutBarrier" represents "touchBarrierAtLeastOnce"
-		*/
 		if ( IsKnockOut == false ) {
 			
 			System.out.println("You set an Knock-In Option ");
 			
-			inOrOutBarrier = inOrOutBarrier.sub(1).mult(-1);
-			
-		} 
-		
-		// we multiply payoff with inOrOutBarrier, pay attention
-		// for Knock-In "inOrOutBarrier" represents "touchBarrierAtLeastOnce"
-		values = values.mult(inOrOutBarrier);
+		}
+
+		/*
+		 * The payoff: values = max(underlying - strike, 0) = V(T) = max(X(T)-K,0) for Call
+		 * The payoff: values = max(strike - underlying, 0) = V(T) = max(K -X(T),0) for Put
+		 * multiplied by inOrOutBarrier. If the option is "Knock-In" we replace the 0 with 1 and vice versa,
+		 * so that in this case "inOrOutBarrier" represents "touchBarrierAtLeastOnce".
+		 * We write the result in the same buffer, which we then wrap in a RandomVariable only once.
+		 */
+		for (int pathIndex = 0; pathIndex < inOrOutBarrier.length; pathIndex++) {
+			double barrierFactor = IsKnockOut ? inOrOutBarrier[pathIndex] : 1.0 - inOrOutBarrier[pathIndex];
+			double payoff = Math.max((underlyingAtMaturity.get(pathIndex) - strike) * callOrPutSign, 0.0);
+			inOrOutBarrier[pathIndex] = payoff * barrierFactor;
+		}
+		RandomVariable values = new RandomVariableFromDoubleArray(maturity, inOrOutBarrier);
 		
 		// Discounting...
 		final RandomVariable numeraireAtMaturity	= model.getNumeraire(maturity);
@@ -139,5 +143,141 @@ public class BarrierOptionMonteCarlo extends AbstractAssetMonteCarloProduct {
 
 	}
 
+	/**
+	 * It returns the price at time 0 of the option for the paths stored in the given MemoryMappedPathStore. The
+	 * columns of the store are read one time after the other in the same buffer, so the heap only needs two arrays
+	 * of length equal to the number of paths, whatever the number of times. Only the discrete monitoring of the
+	 * barrier is supported here.
+	 *
+	 * @param pathStore the store with the simulated paths of the underlying
+	 * @return the price of the option at time 0
+	 */
+	public double getValue(MemoryMappedPathStore pathStore) {
+		if (isContinuouslyMonitored) {
+			throw new IllegalArgumentException("Error: the continuous monitoring is not supported for a path store!");
+		}
+		int numberOfPaths = pathStore.getNumberOfPaths();
+		int lastTimeIndex = PathExtremumCache.getLastTimeIndex(pathStore.getTimeDiscretization(), maturity);
+
+		double[] realizations = new double[numberOfPaths];
+		double[] inOrOutBarrier = new double[numberOfPaths];
+		Arrays.fill(inOrOutBarrier, 1.0);
+
+		//1_{B_L <= X_{t_i}(omega_j)<= B_U for all t_i <= T}, one column after the other
+		for (int timeIndex = 0; timeIndex <= lastTimeIndex; timeIndex++) {
+			pathStore.readRealizations(timeIndex, realizations);
+			for (int pathIndex = 0; pathIndex < numberOfPaths; pathIndex++) {
+				double realization = realizations[pathIndex];
+				if (!(realization >= lowerBarrier && realization <= upperBarrier)) {
+					inOrOutBarrier[pathIndex] = 0.0;
+				}
+			}
+		}
+
+		//now realizations are X(T), and we compute the average of the payoffs as in getValue
+		double sumOfPayoffs = 0.0;
+		for (int pathIndex = 0; pathIndex < numberOfPaths; pathIndex++) {
+			double barrierFactor = IsKnockOut ? inOrOutBarrier[pathIndex] : 1.0 - inOrOutBarrier[pathIndex];
+			sumOfPayoffs += Math.max((realizations[pathIndex] - strike) * callOrPutSign, 0.0) * barrierFactor;
+		}
+
+		// Discounting with the deterministic numeraire
+		return sumOfPayoffs / numberOfPaths / pathStore.getNumeraire(lastTimeIndex) * pathStore.getNumeraire(0);
+	}
+
+	/**
+	 * If set to true, the barrier is considered to be continuously monitored: the payoff of every trajectory is
+	 * then weighted by the Brownian bridge probability that it does not exit [B_L,B_U] between two times of the
+	 * time discretization of the model. In this way we can get the continuously monitored price with much less
+	 * time steps. By default, the barrier is only checked at the times of the time discretization.
+	 * Note that in this case the volatility of the underlying must be set, see setVolatility.
+	 * 
+	 * @param isContinuouslyMonitored true if the barrier is continuously monitored
+	 */
+	public void setContinuousMonitoring(boolean isContinuouslyMonitored) {
+		this.isContinuouslyMonitored = isContinuouslyMonitored;
+	}
+
+	/**
+	 * If set to true, the running minima and maxima of the paths used to check the barrier are stored at all the
+	 * times of the simulation, so that they can be shared by products with different maturities: note that they
+	 * need twice the memory of the simulated underlying. By default they are stored only at maturity, so the memory
+	 * they need does not depend on the number of times. See PathExtremumCache.
+	 * 
+	 * @param isKeepingExtremaAtAllTimes true if the extrema are stored at all times
+	 */
+	public void setKeepExtremaAtAllTimes(boolean isKeepingExtremaAtAllTimes) {
+		this.isKeepingExtremaAtAllTimes = isKeepingExtremaAtAllTimes;
+	}
+
+	// Setter for volatility, needed for the Brownian bridge of the continuous monitoring
+	public void setVolatility(double volatility) {
+		this.volatility = volatility;
+	}
+
+	/**
+	 * It returns the maturity T of the option
+	 * @return the maturity T of the option
+	 */
+	public double getMaturity() {
+		return maturity;
+	}
+
+	/**
+	 * It returns the strike K of the option
+	 * @return the strike K of the option
+	 */
+	public double getStrike() {
+		return strike;
+	}
+
+	/**
+	 * It returns the lower barrier B_L of the option
+	 * @return the lower barrier B_L of the option
+	 */
+	public double getLowerBarrier() {
+		return lowerBarrier;
+	}
+
+	/**
+	 * It returns the upper barrier B_U of the option
+	 * @return the upper barrier B_U of the option
+	 */
+	public double getUpperBarrier() {
+		return upperBarrier;
+	}
+
+	/**
+	 * It returns 1 if the option is a call, -1 if it is a put
+	 * @return 1 if the option is a call, -1 if it is a put
+	 */
+	public double getCallOrPutSign() {
+		return callOrPutSign;
+	}
+
+	/**
+	 * It returns the index of the underlying if the model is multi-dimensional
+	 * @return the index of the underlying
+	 */
+	public int getUnderlyingIndex() {
+		return underlyingIndex;
+	}
+
+	/**
+	 * It returns true if the option is knock out, false if it is knock in
+	 * @return true if the option is knock out, false if it is knock in
+	 */
+	public boolean isKnockOut() {
+		return IsKnockOut;
+	}
+
+	/**
+	 * It returns true if the barrier is continuously monitored, see setContinuousMonitoring
+	 * @return true if the barrier is continuously monitored
+	 */
+	public boolean isContinuouslyMonitored() {
+		return isContinuouslyMonitored;
+	}
+
 }
 
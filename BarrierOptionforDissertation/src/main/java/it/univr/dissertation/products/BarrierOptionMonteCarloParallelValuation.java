@@ -0,0 +1,214 @@
+package it.univr.dissertation.products;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import it.univr.dissertation.usefulclass.CounterBasedRandomStream;
+import it.univr.dissertation.usefulclass.MemoryMappedPathStore;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.BrownianMotion;
+import net.finmath.montecarlo.BrownianMotionFromMersenneRandomNumbers;
+import net.finmath.montecarlo.assetderivativevaluation.MonteCarloAssetModel;
+import net.finmath.montecarlo.assetderivativevaluation.products.AbstractAssetMonteCarloProduct;
+import net.finmath.montecarlo.model.ProcessModel;
+import net.finmath.stochastic.RandomVariable;
+import net.finmath.time.TimeDiscretization;
+
+/**
+ * This class computes the Monte Carlo price of a product, for example an object of type BarrierOptionMonteCarlo,
+ * by splitting the paths of the simulation in chunks which are valued in parallel.
+ * Every chunk has its own Brownian motion, whose seed is given by a counter-based stream identified by the index
+ * of the chunk: so the paths of a chunk do not depend on which thread simulates it. For every chunk we compute
+ * the sum and the sum of the squares of the discounted payoffs, and these are then added in the order of the
+ * chunks. In this way the price and its standard error only depend on the master seed and on the number of
+ * paths per chunk, and not on the number of threads.
+ * Note that the paths are not the same ones we would get with a single Brownian motion with all the paths,
+ * so the price is not the same as the one of the sequential valuation: it is another (equally good) estimate.
+ */
+public class BarrierOptionMonteCarloParallelValuation {
+
+	private static final long DEFAULT_MASTER_SEED = 3141;
+
+	private final AbstractAssetMonteCarloProduct product;
+	private final ProcessModel processModel;
+	private final TimeDiscretization timeDiscretization;
+	private final int numberOfPaths;
+	private final int numberOfPathsPerChunk;
+
+	private CounterBasedRandomStream randomStream = new CounterBasedRandomStream(DEFAULT_MASTER_SEED);
+	//by default, we use all the available processors
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * It constructs an object which computes the Monte Carlo price of the given product in parallel.
+	 *
+	 * @param product the product to be valued
+	 * @param processModel the "model" part of the simulation, for example a Black-Scholes model
+	 * @param timeDiscretization the time discretization of the simulation
+	 * @param numberOfPaths the total number of paths
+	 * @param numberOfPathsPerChunk the number of paths of every chunk (the last one can have less)
+	 */
+	public BarrierOptionMonteCarloParallelValuation(AbstractAssetMonteCarloProduct product, ProcessModel processModel,
+			TimeDiscretization timeDiscretization, int numberOfPaths, int numberOfPathsPerChunk) {
+		if (numberOfPaths < 2 || numberOfPathsPerChunk < 1) {
+			throw new IllegalArgumentException("Error: the number of paths must be at least 2 and the chunks cannot be empty!");
+		}
+		this.product = product;
+		this.processModel = processModel;
+		this.timeDiscretization = timeDiscretization;
+		this.numberOfPaths = numberOfPaths;
+		this.numberOfPathsPerChunk = numberOfPathsPerChunk;
+	}
+
+	/**
+	 * It returns the price of the product at time 0 and its Monte Carlo standard error.
+	 *
+	 * @return an array whose first element is the price and the second one is the standard error
+	 * @throws CalculationException
+	 */
+	public double[] getValueAndStandardError() throws CalculationException {
+
+		int numberOfChunks = getNumberOfChunks();
+
+		//the partial sums of the chunks: we add them in the order of the chunks at the end
+		double[] sumsOfValues = new double[numberOfChunks];
+		double[] sumsOfSquaredValues = new double[numberOfChunks];
+
+		runOnAllChunks(chunkIndex -> {
+			RandomVariable values = product.getValue(0.0, getModelForChunk(chunkIndex));
+			/*
+			 * The Finmath getValue multiplies by the Monte Carlo weights at maturity and divides by the ones
+			 * at evaluation time, so these are the discounted payoffs of the single paths.
+			 */
+			double sum = 0.0;
+			double sumOfSquares = 0.0;
+			for (int pathIndex = 0; pathIndex < values.size(); pathIndex++) {
+				double value = values.get(pathIndex);
+				sum += value;
+				sumOfSquares += value * value;
+			}
+			sumsOfValues[chunkIndex] = sum;
+			sumsOfSquaredValues[chunkIndex] = sumOfSquares;
+		});
+
+		double sum = 0.0;
+		double sumOfSquares = 0.0;
+		for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++) {
+			sum += sumsOfValues[chunkIndex];
+			sumOfSquares += sumsOfSquaredValues[chunkIndex];
+		}
+		double value = sum / numberOfPaths;
+		//the sample variance of the discounted payoffs
+		double variance = Math.max((sumOfSquares - numberOfPaths * value * value) / (numberOfPaths - 1), 0.0);
+
+		return new double[] {value, Math.sqrt(variance / numberOfPaths)};
+	}
+
+	/**
+	 * It simulates the paths chunk by chunk, in parallel, and writes them in a new MemoryMappedPathStore: in this
+	 * way only the paths of the chunks which are being simulated are in the heap. The paths are the same ones
+	 * used by getValueAndStandardError. The store must be closed by the caller.
+	 *
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @return the store with all the simulated paths
+	 * @throws CalculationException
+	 * @throws IOException if the file of the store cannot be created
+	 */
+	public MemoryMappedPathStore getPathStore(int underlyingIndex) throws CalculationException, IOException {
+		MemoryMappedPathStore pathStore = new MemoryMappedPathStore(timeDiscretization, numberOfPaths);
+		try {
+			runOnAllChunks(chunkIndex -> pathStore.writePaths(getModelForChunk(chunkIndex), underlyingIndex,
+					chunkIndex * numberOfPathsPerChunk));
+		} catch (CalculationException e) {
+			pathStore.close();
+			throw e;
+		}
+		return pathStore;
+	}
+
+	/*
+	 * It runs the given task for all the chunks, on a pool with the given parallelism.
+	 */
+	private void runOnAllChunks(ChunkTask task) throws CalculationException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.submit(() -> IntStream.range(0, getNumberOfChunks()).parallel().forEach(chunkIndex -> {
+				try {
+					task.run(chunkIndex);
+				} catch (CalculationException e) {
+					throw new IllegalStateException(e);
+				}
+			})).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalculationException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			//the CalculationException thrown by the task is wrapped in an IllegalStateException
+			if (cause instanceof IllegalStateException && cause.getCause() instanceof CalculationException) {
+				throw (CalculationException) cause.getCause();
+			}
+			throw new CalculationException(cause);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	//what we do for every chunk
+	@FunctionalInterface
+	private interface ChunkTask {
+		void run(int chunkIndex) throws CalculationException;
+	}
+
+	/**
+	 * It returns the price of the product at time 0.
+	 *
+	 * @return the price of the product
+	 * @throws CalculationException
+	 */
+	public double getValue() throws CalculationException {
+		return getValueAndStandardError()[0];
+	}
+
+	/**
+	 * It returns the simulation of the given chunk: its Brownian motion has the seed identified by the index of
+	 * the chunk in the counter-based stream, so it is always the same for the same master seed.
+	 *
+	 * @param chunkIndex the index of the chunk, from 0 to getNumberOfChunks()-1
+	 * @return the simulation of the paths of the chunk
+	 */
+	public MonteCarloAssetModel getModelForChunk(int chunkIndex) {
+		int firstPath = chunkIndex * numberOfPathsPerChunk;
+		int numberOfPathsOfChunk = Math.min(numberOfPathsPerChunk, numberOfPaths - firstPath);
+		BrownianMotion brownianMotionOfChunk = new BrownianMotionFromMersenneRandomNumbers(timeDiscretization,
+				processModel.getNumberOfFactors(), numberOfPathsOfChunk, randomStream.getSeed(chunkIndex, 0));
+		return new MonteCarloAssetModel(processModel, brownianMotionOfChunk);
+	}
+
+	/**
+	 * It returns the number of chunks in which the paths are split
+	 * @return the number of chunks
+	 */
+	public int getNumberOfChunks() {
+		return (numberOfPaths + numberOfPathsPerChunk - 1) / numberOfPathsPerChunk;
+	}
+
+	/**
+	 * It sets the number of threads which value the chunks. The result does not depend on it.
+	 *
+	 * @param parallelism the number of threads
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Error: the parallelism must be at least 1!");
+		}
+		this.parallelism = parallelism;
+	}
+
+	// Setter for the master seed of the Brownian motions of the chunks: same seed, same price
+	public void setSeed(long masterSeed) {
+		randomStream = new CounterBasedRandomStream(masterSeed);
+	}
+}
@@ -0,0 +1,142 @@
+package it.univr.dissertation.products;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import it.univr.dissertation.usefulclass.PathExtremumCache;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.RandomVariableFromDoubleArray;
+import net.finmath.montecarlo.assetderivativevaluation.AssetModelMonteCarloSimulationModel;
+import net.finmath.stochastic.RandomVariable;
+
+/**
+ * This class computes the Monte Carlo prices of a portfolio of barrier options, given as objects of type
+ * BarrierOptionMonteCarlo, which are valued with the same simulation.
+ * If we call getValue for every option with a different maturity, the simulated paths are scanned once per
+ * maturity. Here instead, for every underlying, we scan the paths only once and we keep for every path the running
+ * minimum and maximum m_k(omega_j) = min_{i <= k} X_{t_i}(omega_j) and M_k(omega_j) = max_{i <= k} X_{t_i}(omega_j)
+ * only at the times t_k which correspond to the maturities of the options: see
+ * PathExtremumCache.getPathExtremaAtMaturities. These are all we need: for a discretely monitored option with
+ * maturity T, 1_{B_L <= X_{t_i}(omega_j)<= B_U for all t_i <= T} = 1_{B_L <= m_k(omega_j) and M_k(omega_j) <= B_U},
+ * where t_k is the last time of the time discretization before T. Then the payoff of every option is computed in a
+ * single loop over the paths, with the same extrema used by its getValue.
+ * The options which are continuously monitored (see BarrierOptionMonteCarlo.setContinuousMonitoring) need the
+ * whole paths, so they are valued by their own getValue.
+ */
+public class BarrierOptionMonteCarloPortfolio {
+
+	private final List<BarrierOptionMonteCarlo> options;
+
+	/**
+	 * It constructs an object representing a portfolio of barrier options.
+	 *
+	 * @param options the barrier options of the portfolio
+	 */
+	public BarrierOptionMonteCarloPortfolio(List<BarrierOptionMonteCarlo> options) {
+		this.options = new ArrayList<BarrierOptionMonteCarlo>(options);
+	}
+
+	/**
+	 * It returns the prices at time 0 of the options of the portfolio, in the same order of the list given in
+	 * the constructor.
+	 *
+	 * @param model the simulation of the underlying
+	 * @return the array of the prices of the options
+	 * @throws CalculationException
+	 */
+	public double[] getValues(AssetModelMonteCarloSimulationModel model) throws CalculationException {
+		RandomVariable[] values = getValues(0.0, model);
+		double[] prices = new double[values.length];
+		for (int optionIndex = 0; optionIndex < values.length; optionIndex++) {
+			prices[optionIndex] = values[optionIndex].getAverage();
+		}
+		return prices;
+	}
+
+	/**
+	 * It returns the values at evaluationTime of the options of the portfolio, in the same order of the list
+	 * given in the constructor. They are the same random variables we would get by calling getValue for every
+	 * option.
+	 *
+	 * @param evaluationTime the time at which the options are valued
+	 * @param model the simulation of the underlying
+	 * @return the array of the values of the options
+	 * @throws CalculationException
+	 */
+	public RandomVariable[] getValues(double evaluationTime, AssetModelMonteCarloSimulationModel model)
+			throws CalculationException {
+
+		RandomVariable[] values = new RandomVariable[options.size()];
+
+		//the options which are discretely monitored, grouped by underlying
+		TreeMap<Integer, List<Integer>> optionIndicesForUnderlying = new TreeMap<Integer, List<Integer>>();
+		for (int optionIndex = 0; optionIndex < options.size(); optionIndex++) {
+			BarrierOptionMonteCarlo option = options.get(optionIndex);
+			if (option.isContinuouslyMonitored()) {
+				values[optionIndex] = option.getValue(evaluationTime, model);
+			}
+			else {
+				optionIndicesForUnderlying.computeIfAbsent(option.getUnderlyingIndex(), k -> new ArrayList<Integer>())
+				.add(optionIndex);
+			}
+		}
+
+		for (int underlyingIndex : optionIndicesForUnderlying.keySet()) {
+			valueOptionsOnUnderlying(evaluationTime, model, underlyingIndex,
+					optionIndicesForUnderlying.get(underlyingIndex), values);
+		}
+		return values;
+	}
+
+	/*
+	 * It values all the given discretely monitored options on the same underlying with a single scan of the paths.
+	 */
+	private void valueOptionsOnUnderlying(double evaluationTime, AssetModelMonteCarloSimulationModel model,
+			int underlyingIndex, List<Integer> optionIndices, RandomVariable[] values) throws CalculationException {
+
+		int numberOfPaths = model.getNumberOfPaths();
+
+		//the running minimum and maximum at the maturities of all the options, computed with a single scan of the paths
+		double[] maturities = optionIndices.stream().mapToDouble(optionIndex -> options.get(optionIndex).getMaturity()).toArray();
+		PathExtremumCache pathExtrema = PathExtremumCache.getPathExtremaAtMaturities(model, underlyingIndex, maturities);
+
+		//now the payoffs: only arithmetic, one loop over the paths for every option
+		final RandomVariable numeraireAtEvalTime = model.getNumeraire(evaluationTime);
+		final RandomVariable monteCarloWeightsAtEvalTime = model.getMonteCarloWeights(evaluationTime);
+
+		for (int optionIndex : optionIndices) {
+			BarrierOptionMonteCarlo option = options.get(optionIndex);
+			double maturity = option.getMaturity();
+			double strike = option.getStrike();
+			double lowerBarrier = option.getLowerBarrier();
+			double upperBarrier = option.getUpperBarrier();
+			double callOrPutSign = option.getCallOrPutSign();
+			boolean isKnockOut = option.isKnockOut();
+
+			//these arrays are shared by the cache: we only read them
+			double[] minimum = pathExtrema.getRunningMinimum(maturity);
+			double[] maximum = pathExtrema.getRunningMaximum(maturity);
+
+			final RandomVariable underlyingAtMaturity = model.getAssetValue(maturity, underlyingIndex);
+
+			double[] payoffs = new double[numberOfPaths];
+			for (int pathIndex = 0; pathIndex < numberOfPaths; pathIndex++) {
+				boolean isInsideBarriers = minimum[pathIndex] >= lowerBarrier && maximum[pathIndex] <= upperBarrier;
+				//the knock in option pays if the path has touched the barrier at least once
+				if (isInsideBarriers == isKnockOut) {
+					payoffs[pathIndex] = Math.max((underlyingAtMaturity.get(pathIndex) - strike) * callOrPutSign, 0.0);
+				}
+			}
+			RandomVariable valuesOfOption = new RandomVariableFromDoubleArray(maturity, payoffs);
+
+			// Discounting, as in BarrierOptionMonteCarlo...
+			final RandomVariable numeraireAtMaturity = model.getNumeraire(maturity);
+			final RandomVariable monteCarloWeights = model.getMonteCarloWeights(maturity);
+			valuesOfOption = valuesOfOption.div(numeraireAtMaturity).mult(monteCarloWeights);
+
+			// ...to evaluation time.
+			values[optionIndex] = valuesOfOption.mult(numeraireAtEvalTime).div(monteCarloWeightsAtEvalTime);
+		}
+	}
+}
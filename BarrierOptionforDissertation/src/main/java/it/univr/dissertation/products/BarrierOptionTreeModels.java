@@ -2,15 +2,20 @@ package it.univr.dissertation.products;
 
 import java.util.function.DoubleUnaryOperator;
 
+import it.univr.dissertation.analyticformulas.MyAnalyticForumulas;
 import it.univr.dissertation.usefulclass.ApproximatingTreeModelInterface;
-import it.univr.dissertation.usefulclass.UsefulMethodsForArrays;
+import it.univr.dissertation.usefulclass.TreePayoffKernel;
 
 
 public class BarrierOptionTreeModels {
 
 	private double maturity;
-	private DoubleUnaryOperator payoffFunction;
-	private DoubleUnaryOperator barrierFunction;//this is defined in the constructor.
+	private double strike;
+	private double callOrPutSign;
+	//it writes the payoffs at the nodes inside the barriers, see TreePayoffKernel
+	private TreePayoffKernel payoffKernel;
+	private double lowerBarrier;
+	private double upperBarrier;
 	
 
 	/**
@@ -25,14 +30,19 @@ public class BarrierOptionTreeModels {
 	 */
 	public BarrierOptionTreeModels(double maturity,double strike, double lowerBarrier, double upperBarrier, boolean isCall ) {
 		this.maturity = maturity;
+		this.strike = strike;
+		callOrPutSign = isCall ? 1 : -1;
 		
-		barrierFunction = (x) -> (x>lowerBarrier & x < upperBarrier ? 1 : 0);
+		//the option is alive if lowerBarrier < x < upperBarrier, see getFirstNodeBelowUpperBarrier
+		this.lowerBarrier = lowerBarrier;
+		this.upperBarrier = upperBarrier;
 		
+		//specialised kernels, so that the payoff is not computed through a DoubleUnaryOperator at every node
 		if (isCall == true) {
-			payoffFunction = (x) -> (x - strike > 0 ? x - strike : 0.0);
+			payoffKernel = TreePayoffKernel.call(strike);
 		}
 		else  {
-			payoffFunction = (x) -> (strike - x > 0 ? strike - x : 0.0);
+			payoffKernel = TreePayoffKernel.put(strike);
 		}
 	}
 	
@@ -40,14 +50,14 @@ public class BarrierOptionTreeModels {
 	//method that give value without barrier in order to exploit it for in-out parity
 	
 	public double getValueWithoutBarrier(ApproximatingTreeModelInterface approximatingTreeModel) {
-		//the vector representing all the possible values of the payoff at maturity
-		double[] optionValues = approximatingTreeModel.getTransformedValuesAtGivenTime(maturity, payoffFunction);
 		int numberOfTimes = (int) Math.round(maturity/approximatingTreeModel.getTimeStep());
+		//the vector representing all the possible values of the payoff at maturity
+		double[] optionValues = getValuesAtLastTimeIndex(approximatingTreeModel, numberOfTimes, 0,
+				approximatingTreeModel.getNumberOfNodesAtGivenTimeIndex(numberOfTimes) - 1, payoffKernel);
 		//we go backward and for any timeIndex we compute the conditional expectation of the value of the option at timeIndex + 1
 		for (int timeIndex = numberOfTimes - 1; timeIndex >= 0; timeIndex--) {
-			//delegation to approximatingBinomialModel!
-        	double[] conditionalExpectation = approximatingTreeModel.getConditionalExpectation(optionValues, timeIndex);
-            optionValues = conditionalExpectation;   
+			//delegation to approximatingBinomialModel! The conditional expectations are written in the same array
+			approximatingTreeModel.overwriteWithConditionalExpectation(optionValues, timeIndex);
         }
 		return optionValues[0];
 	}
@@ -59,6 +69,10 @@ public class BarrierOptionTreeModels {
 	 * from maturity to initial time and computing the iterative conditional expectation, see slides. The conditional
 	 * expectations are multiplied at every time with a vector whose elements are 1 if the value of the underlying
 	 * is within the interval [lowerBarrier, upperBarrier] and 0 otherwise.
+	 * Since the values of the tree at a given time are decreasing in the index of the node, the nodes inside the
+	 * interval are the ones between two indices, which we find with a binary search: the option is zero outside
+	 * them, so we compute the conditional expectations only for these nodes. In this way the cost is proportional
+	 * to the number of nodes inside the barriers and not to the number of nodes of the tree.
 	 * 
 	 * 
 	 * @param approximatingTreeModel, the underlying
@@ -66,44 +80,188 @@ public class BarrierOptionTreeModels {
 	 */
 	public double getValue(ApproximatingTreeModelInterface approximatingTreeModel) {
 		
-		//the values of the option at maturity if this is not a barrier option
-		//(f(S_0u^nd^0),f(S_0u^(n-1)d^1),..., f(S_0u^0d^n))
-		double[] optionValuesWithoutBarrier = approximatingTreeModel.getTransformedValuesAtGivenTime(maturity, payoffFunction);
-		
-		//the values of the underlyings: we need them to check if they are inside the interval
-		double[] underlyingValues = approximatingTreeModel.getValuesAtGivenTime(maturity);
-		
+		int numberOfTimes = (int) Math.round(maturity/approximatingTreeModel.getTimeStep());
+
+		return getValueFromGivenTimeIndex(approximatingTreeModel, numberOfTimes, payoffKernel);
+	}
+
+	/**
+	 * It returns the discounted value of the option as getValue, but at the last time before maturity the values of
+	 * the option are not the conditional expectations of the payoffs: they are the Black-Scholes prices of the
+	 * European option with maturity one time step. This is the "binomial Black-Scholes" method of Broadie and
+	 * Detemple (1996): the prices are then much less sensitive to where the strike is between two nodes, so they
+	 * converge smoothly in the number of times and can be extrapolated, see BarrierOptionTreeRichardsonExtrapolation.
+	 * The barrier is checked at the nodes as in getValue.
+	 * 
+	 * @param approximatingTreeModel, the underlying
+	 * @param riskFreeRate, the risk free rate r of the approximated Black-Scholes model
+	 * @param volatility, the volatility of the approximated Black-Scholes model
+	 * @return the value of the option written on the underlying
+	 */
+	public double getValueWithSmoothedLastStep(ApproximatingTreeModelInterface approximatingTreeModel,
+			double riskFreeRate, double volatility) {
+
+		double timeStep = approximatingTreeModel.getTimeStep();
+		int numberOfTimes = (int) Math.round(maturity/timeStep);
+
+		DoubleUnaryOperator valueOneStepBeforeMaturity = (x) -> MyAnalyticForumulas.blackScholesOptionValue(x,
+				riskFreeRate, volatility, timeStep, strike, callOrPutSign);
+		return getValueFromGivenTimeIndex(approximatingTreeModel, numberOfTimes - 1,
+				TreePayoffKernel.of(valueOneStepBeforeMaturity));
+	}
+
+	/*
+	 * It goes backward in the tree from lastTimeIndex, where the values of the option are given by
+	 * valuesAtLastTimeIndex, see getValue.
+	 */
+	private double getValueFromGivenTimeIndex(ApproximatingTreeModelInterface approximatingTreeModel, int lastTimeIndex,
+			TreePayoffKernel valuesAtLastTimeIndex) {
+
+		//the nodes at the last time inside the barriers
+		int firstNodeIndex = getFirstNodeBelowUpperBarrier(approximatingTreeModel, lastTimeIndex);
+		int lastNodeIndex = getLastNodeAboveLowerBarrier(approximatingTreeModel, lastTimeIndex);
+		if (firstNodeIndex > lastNodeIndex) {
+			//all the nodes are outside the barriers, so the option is knocked out for sure
+			return 0.0;
+		}
+
+		//(f(S_0u^nd^0),f(S_0u^(n-1)d^1),..., f(S_0u^0d^n)) multiplied by (0,0,0,1,1,1...,0,0,0)
+		//the values of the option at the last time, considering now the barrier
+		double[] optionValues = getValuesAtLastTimeIndex(approximatingTreeModel, lastTimeIndex, firstNodeIndex, lastNodeIndex,
+				valuesAtLastTimeIndex);
+
 		/*
-		 * vector whose elements are 1 if the value of the underlying approximating Tree model is within the interval
-		 * [lowerBarrier, upperBarrier] and 0 otherwise
+		 * Differently from what we would do with getConditionalExpectation and getValuesAtGivenTimeIndex, here
+		 * we do not allocate any array in the loop: the conditional expectations overwrite the values of the option
+		 * in the same array.
 		 */
-		//(0,0,0,1,1,1...,0,0,0)
-		double[] areTheUnderlyingValuesInsideInterval = UsefulMethodsForArrays.applyFunctionToArray(underlyingValues, barrierFunction);
-		 
-		//(f(S_0u^nd^0),f(S_0u^(n-1)d^1),..., f(S_0u^0d^n))
-		//the values of the option at maturity, considering now the barrier
-		double[] optionValues = UsefulMethodsForArrays.multArrays(optionValuesWithoutBarrier, areTheUnderlyingValuesInsideInterval);
+		for (int timeIndex = lastTimeIndex - 1; timeIndex >= 0; timeIndex--) {
 
-		int numberOfTimes = (int) Math.round(maturity/approximatingTreeModel.getTimeStep());
-		for (int timeIndex = numberOfTimes - 1; timeIndex >= 0; timeIndex--) {
-			
-			//now we repeat the same thing as above at any time.
-			
-			//the values of the option not considering the barrier
-        	double[] conditionalExpectation = approximatingTreeModel.getConditionalExpectation(optionValues, timeIndex);
-    		//the values of the underlyings: we need them to check if they are inside the interval
-        	underlyingValues = approximatingTreeModel.getValuesAtGivenTimeIndex(timeIndex);
-        	/*
-    		 * vector whose elements are 1 if the value of the underlying approximating tree model is within the interval
-    		 * [lowerBarrier, upperBarrier] and 0 otherwise
-    		 */
-        	areTheUnderlyingValuesInsideInterval = UsefulMethodsForArrays.applyFunctionToArray(underlyingValues, barrierFunction);
-        	
-    		//the values of the option, considering now the barrier
-        	double[] transformedConditionalExpectation = UsefulMethodsForArrays.multArrays(conditionalExpectation, areTheUnderlyingValuesInsideInterval);
-        	optionValues = transformedConditionalExpectation;  
+			//the nodes at timeIndex inside the barriers: the option is zero at the other ones
+			firstNodeIndex = getFirstNodeBelowUpperBarrier(approximatingTreeModel, timeIndex);
+			lastNodeIndex = getLastNodeAboveLowerBarrier(approximatingTreeModel, timeIndex);
+			if (firstNodeIndex > lastNodeIndex) {
+				//all the paths go through a node outside the barriers at timeIndex
+				return 0.0;
+			}
 
+			//the values of the option, considering the barrier, only at the nodes inside the barriers
+			rollBackInsideBarriers(approximatingTreeModel, optionValues, timeIndex, firstNodeIndex, lastNodeIndex);
         }
 		return optionValues[0];
 	}
+
+	/*
+	 * It overwrites the values of the option at timeIndex+1 with their conditional expectations at timeIndex, only
+	 * at the nodes from firstNodeIndex to lastNodeIndex, which are the ones inside the barriers, and with zero at the
+	 * other ones. It is also used by BarrierOptionTreeModelsPortfolio for all the options with the same barriers.
+	 */
+	static void rollBackInsideBarriers(ApproximatingTreeModelInterface approximatingTreeModel, double[] optionValues,
+			int timeIndex, int firstNodeIndex, int lastNodeIndex) {
+		/*
+		 * The conditional expectations and the zeros outside the barriers are written in a single loop, in the same
+		 * array. The nodes inside the barriers at timeIndex-1 have their successors between firstNodeIndex-1 and
+		 * lastNodeIndex+1 at timeIndex: the ones which are not inside the barriers still have the values of
+		 * timeIndex+1, so the tree sets to zero two nodes per side, which is enough for binomial and trinomial trees.
+		 */
+		approximatingTreeModel.writeConditionalExpectationInsideBarriers(optionValues, timeIndex, firstNodeIndex,
+				lastNodeIndex, optionValues);
+	}
+
+	/*
+	 * It returns the smallest index of the nodes at timeIndex where the underlying is smaller than upperBarrier,
+	 * or the number of nodes if there is no such node. Since the values are decreasing in the index, we find it
+	 * by a binary search.
+	 */
+	int getFirstNodeBelowUpperBarrier(ApproximatingTreeModelInterface approximatingTreeModel, int timeIndex) {
+		int lowestIndex = 0;
+		int highestIndex = approximatingTreeModel.getNumberOfNodesAtGivenTimeIndex(timeIndex);
+		while (lowestIndex < highestIndex) {
+			int middleIndex = (lowestIndex + highestIndex) >>> 1;
+			if (approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, middleIndex) < upperBarrier) {
+				highestIndex = middleIndex;
+			}
+			else {
+				lowestIndex = middleIndex + 1;
+			}
+		}
+		return lowestIndex;
+	}
+
+	/*
+	 * It returns the biggest index of the nodes at timeIndex where the underlying is bigger than lowerBarrier,
+	 * or -1 if there is no such node. Since the values are decreasing in the index, we find it by a binary search.
+	 */
+	int getLastNodeAboveLowerBarrier(ApproximatingTreeModelInterface approximatingTreeModel, int timeIndex) {
+		int lowestIndex = -1;
+		int highestIndex = approximatingTreeModel.getNumberOfNodesAtGivenTimeIndex(timeIndex) - 1;
+		while (lowestIndex < highestIndex) {
+			int middleIndex = (lowestIndex + highestIndex + 1) >>> 1;
+			if (approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, middleIndex) > lowerBarrier) {
+				lowestIndex = middleIndex;
+			}
+			else {
+				highestIndex = middleIndex - 1;
+			}
+		}
+		return lowestIndex;
+	}
+
+	/*
+	 * It returns the array of the values f(S_0u^(n-i)d^i) at the given time index n, where f is given by the kernel,
+	 * for the nodes i from firstNodeIndex to lastNodeIndex, and zero for the others. At maturity f is the payoff.
+	 * This is the array in which we then go backward in the tree.
+	 */
+	static double[] getValuesAtLastTimeIndex(ApproximatingTreeModelInterface approximatingTreeModel, int lastTimeIndex,
+			int firstNodeIndex, int lastNodeIndex, TreePayoffKernel valuesAtLastTimeIndex) {
+		double[] optionValues = new double[approximatingTreeModel.getNumberOfNodesAtGivenTimeIndex(lastTimeIndex)];
+		valuesAtLastTimeIndex.fillValuesAtGivenTimeIndex(approximatingTreeModel, lastTimeIndex, firstNodeIndex,
+				lastNodeIndex, optionValues);
+		return optionValues;
+	}
+
+	/**
+	 * It returns the maturity T of the option
+	 * @return the maturity T of the option
+	 */
+	public double getMaturity() {
+		return maturity;
+	}
+
+	/**
+	 * It returns the strike K of the option
+	 * @return the strike K of the option
+	 */
+	public double getStrike() {
+		return strike;
+	}
+
+	/**
+	 * It returns the lower barrier B_L of the option
+	 * @return the lower barrier B_L of the option
+	 */
+	public double getLowerBarrier() {
+		return lowerBarrier;
+	}
+
+	/**
+	 * It returns the upper barrier B_U of the option
+	 * @return the upper barrier B_U of the option
+	 */
+	public double getUpperBarrier() {
+		return upperBarrier;
+	}
+
+	/**
+	 * It returns 1 if the option is a call, -1 if it is a put
+	 * @return 1 if the option is a call, -1 if it is a put
+	 */
+	public double getCallOrPutSign() {
+		return callOrPutSign;
+	}
+
+	//the kernel of the payoff f(S_T) of the option, used by BarrierOptionTreeModelsPortfolio
+	TreePayoffKernel getPayoffKernel() {
+		return payoffKernel;
+	}
 }
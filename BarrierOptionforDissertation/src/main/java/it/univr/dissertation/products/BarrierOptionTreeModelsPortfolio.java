@@ -0,0 +1,170 @@
+package it.univr.dissertation.products;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import it.univr.dissertation.usefulclass.ApproximatingTreeModelInterface;
+
+/**
+ * This class computes the tree prices of a portfolio of knock out options, given as objects of type
+ * BarrierOptionTreeModels, written on the same tree model.
+ * If we call getValue for every option, we go backward in the tree once per option, and every time we look for
+ * the nodes inside the barriers at every time. Here instead the options with the same maturity and barriers, which
+ * only differ in the strike or in being call or put, are valued together: at every time we find the nodes inside
+ * the barriers once, and then we compute the conditional expectations for all of them. The values of these options
+ * are stored in a matrix with one row (that is, one array of values at the nodes) per option.
+ * The options with the same maturity and barriers are split in blocks, which are valued in parallel: the values of
+ * the tree are generated once, before the blocks are valued, and then only read by the threads. Every option is
+ * valued with the same operations of its getValue, so the prices do not depend on the number of threads or on the
+ * size of the blocks.
+ */
+public class BarrierOptionTreeModelsPortfolio {
+
+	private final List<BarrierOptionTreeModels> options;
+
+	//by default, we use all the available processors
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	//see setNumberOfOptionsPerBlock
+	private int numberOfOptionsPerBlock = 16;
+
+	/**
+	 * It constructs an object representing a portfolio of knock out options.
+	 *
+	 * @param options the knock out options of the portfolio
+	 */
+	public BarrierOptionTreeModelsPortfolio(List<BarrierOptionTreeModels> options) {
+		this.options = new ArrayList<BarrierOptionTreeModels>(options);
+	}
+
+	/**
+	 * It returns the values of the options of the portfolio, in the same order of the list given in the constructor.
+	 * For every option, it is the same value we would get by calling its getValue.
+	 *
+	 * @param approximatingTreeModel, the underlying
+	 * @return the values of the options written on the underlying
+	 */
+	public double[] getValues(ApproximatingTreeModelInterface approximatingTreeModel) {
+
+		double[] values = new double[options.size()];
+		if (options.isEmpty()) {
+			return values;
+		}
+
+		//the options which can be valued together, grouped by maturity and barriers
+		LinkedHashMap<List<Double>, List<Integer>> optionIndicesForBarriers = new LinkedHashMap<List<Double>, List<Integer>>();
+		for (int optionIndex = 0; optionIndex < options.size(); optionIndex++) {
+			BarrierOptionTreeModels option = options.get(optionIndex);
+			List<Double> key = Arrays.asList(option.getMaturity(), option.getLowerBarrier(), option.getUpperBarrier());
+			optionIndicesForBarriers.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(optionIndex);
+		}
+
+		//the blocks of options valued by the same thread
+		List<int[]> blocks = new ArrayList<int[]>();
+		for (List<Integer> optionIndices : optionIndicesForBarriers.values()) {
+			for (int first = 0; first < optionIndices.size(); first += numberOfOptionsPerBlock) {
+				int last = Math.min(first + numberOfOptionsPerBlock, optionIndices.size());
+				blocks.add(optionIndices.subList(first, last).stream().mapToInt(Integer::intValue).toArray());
+			}
+		}
+
+		/*
+		 * The tree generates its values the first time they are asked: we do it here, so that the threads only read
+		 * them and do not generate them at the same time.
+		 */
+		approximatingTreeModel.getValueAtGivenTimeIndexAndNode(0, 0);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.submit(() -> IntStream.range(0, blocks.size()).parallel().forEach(
+					blockIndex -> valueOptionsWithSameBarriers(approximatingTreeModel, blocks.get(blockIndex), values))).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			pool.shutdown();
+		}
+		return values;
+	}
+
+	/*
+	 * It values all the given options, which have the same maturity and barriers, going backward in the tree only once.
+	 * The values are written in the array values, at the indices of the options.
+	 */
+	private void valueOptionsWithSameBarriers(ApproximatingTreeModelInterface approximatingTreeModel, int[] optionIndices,
+			double[] values) {
+
+		//the nodes inside the barriers only depend on the barriers, so we can take the ones of the first option
+		BarrierOptionTreeModels firstOption = options.get(optionIndices[0]);
+		int numberOfTimes = (int) Math.round(firstOption.getMaturity() / approximatingTreeModel.getTimeStep());
+
+		int firstNodeIndex = firstOption.getFirstNodeBelowUpperBarrier(approximatingTreeModel, numberOfTimes);
+		int lastNodeIndex = firstOption.getLastNodeAboveLowerBarrier(approximatingTreeModel, numberOfTimes);
+		if (firstNodeIndex > lastNodeIndex) {
+			//all the options are knocked out for sure: their values are already zero
+			return;
+		}
+
+		//one row per option: the values of the option at the nodes of the last time
+		double[][] optionValues = new double[optionIndices.length][];
+		for (int k = 0; k < optionIndices.length; k++) {
+			BarrierOptionTreeModels option = options.get(optionIndices[k]);
+			optionValues[k] = BarrierOptionTreeModels.getValuesAtLastTimeIndex(approximatingTreeModel, numberOfTimes,
+					firstNodeIndex, lastNodeIndex, option.getPayoffKernel());
+		}
+
+		for (int timeIndex = numberOfTimes - 1; timeIndex >= 0; timeIndex--) {
+
+			//the nodes at timeIndex inside the barriers, the same for all the options
+			firstNodeIndex = firstOption.getFirstNodeBelowUpperBarrier(approximatingTreeModel, timeIndex);
+			lastNodeIndex = firstOption.getLastNodeAboveLowerBarrier(approximatingTreeModel, timeIndex);
+			if (firstNodeIndex > lastNodeIndex) {
+				return;
+			}
+
+			for (int k = 0; k < optionIndices.length; k++) {
+				BarrierOptionTreeModels.rollBackInsideBarriers(approximatingTreeModel, optionValues[k], timeIndex,
+						firstNodeIndex, lastNodeIndex);
+			}
+		}
+
+		for (int k = 0; k < optionIndices.length; k++) {
+			values[optionIndices[k]] = optionValues[k][0];
+		}
+	}
+
+	/**
+	 * It sets the number of threads which value the blocks of options. The values do not depend on it.
+	 *
+	 * @param parallelism the number of threads
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Error: the parallelism must be at least 1!");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * It sets the maximum number of options with the same maturity and barriers which are valued together by the same
+	 * thread. By default it is 16. The values do not depend on it.
+	 *
+	 * @param numberOfOptionsPerBlock the maximum number of options of a block
+	 */
+	public void setNumberOfOptionsPerBlock(int numberOfOptionsPerBlock) {
+		if (numberOfOptionsPerBlock < 1) {
+			throw new IllegalArgumentException("Error: the blocks of options cannot be empty!");
+		}
+		this.numberOfOptionsPerBlock = numberOfOptionsPerBlock;
+	}
+}
@@ -0,0 +1,170 @@
+package it.univr.dissertation.products;
+
+import it.univr.dissertation.usefulclass.BarrierMatchingTrinomialModel;
+
+/**
+ * This class computes the price of a knock out option, valued by BarrierOptionTreeModels, by Richardson
+ * extrapolation of the prices given by trees with a small number of times.
+ * The prices of the Cox-Ross-Rubinstein model oscillate in the number of times, because both the barrier and the
+ * strike move between the nodes, so they cannot be extrapolated. Here instead:
+ * - the trees are of type BarrierMatchingTrinomialModel with a layer of nodes on the barrier, and the numbers of
+ *   time steps are k*eta^2, where eta is the number of movements to the barrier: in this way the stretch parameter
+ *   lambda of the trees is always the same;
+ * - the values at the last time before maturity are the Black-Scholes prices of the European option, see
+ *   BarrierOptionTreeModels.getValueWithSmoothedLastStep, so that the position of the strike does not matter.
+ * The prices P(n) then converge smoothly as P + c_1/n + c_2/n^2 + ..., and we compute P by extrapolating to
+ * 1/n = 0 the polynomial through the prices for two or three consecutive values of eta (Neville's algorithm).
+ * The difference between this value and the one extrapolated with one level less is given as an estimate of
+ * the error.
+ * The option must have only one barrier, either a lower one (with upper barrier Long.MAX_VALUE) or an upper one
+ * (with lower barrier 0): the trees can put a layer of nodes only on one barrier, and the other one would again move
+ * between the nodes, so that the prices would oscillate and the extrapolation would be meaningless. Options with two
+ * barriers are rejected by the constructor.
+ */
+public class BarrierOptionTreeRichardsonExtrapolation {
+
+	//the smallest stretch parameter of the trees, for which the three probabilities are about 1/3
+	private static final double MINIMUM_STRETCH_PARAMETER = Math.sqrt(1.5);
+
+	private final double maturity;
+	private final double lowerBarrier;
+	private final double upperBarrier;
+	private final BarrierOptionTreeModels option;
+
+	//parameters of the Black-Scholes model
+	private final double initialPrice;
+	private final double riskFreeRate;
+	private final double volatility;
+
+	//see setMinimumNumberOfTimeSteps and setNumberOfExtrapolationLevels
+	private int minimumNumberOfTimeSteps = 100;
+	private int numberOfExtrapolationLevels = 3;
+
+	//the numbers of time steps of the trees of the last valuation
+	private int[] numbersOfTimeSteps = new int[0];
+
+	/**
+	 * It constructs an object which computes the price of a knock out option with one barrier written on a
+	 * Black-Scholes model by Richardson extrapolation of tree prices.
+	 *
+	 * @param maturity, the maturity of the option
+	 * @param strike, the strike K of the option
+	 * @param lowerBarrier, the lower barrier B_L of the option, 0 if the option has only the upper barrier
+	 * @param upperBarrier, the upper barrier B_U of the option, Long.MAX_VALUE if the option has only the lower barrier
+	 * @param isCall, true for a call, false for a put
+	 * @param initialPrice, the initial price of the underlying
+	 * @param riskFreeRate, the risk free rate r of the Black-Scholes model
+	 * @param volatility, the volatility of the Black-Scholes model
+	 */
+	public BarrierOptionTreeRichardsonExtrapolation(double maturity, double strike, double lowerBarrier,
+			double upperBarrier, boolean isCall, double initialPrice, double riskFreeRate, double volatility) {
+		boolean hasLowerBarrier = lowerBarrier > 0;
+		boolean hasUpperBarrier = upperBarrier < Long.MAX_VALUE;
+		if (!hasLowerBarrier && !hasUpperBarrier) {
+			throw new IllegalArgumentException("Error: the option must have at least one barrier!");
+		}
+		if (hasLowerBarrier && hasUpperBarrier) {
+			throw new IllegalArgumentException("Error: the extrapolation only works for options with one barrier!");
+		}
+		this.maturity = maturity;
+		this.lowerBarrier = lowerBarrier;
+		this.upperBarrier = upperBarrier;
+		this.initialPrice = initialPrice;
+		this.riskFreeRate = riskFreeRate;
+		this.volatility = volatility;
+		option = new BarrierOptionTreeModels(maturity, strike, lowerBarrier, upperBarrier, isCall);
+	}
+
+	/**
+	 * It returns the extrapolated price of the option and an estimate of its error.
+	 *
+	 * @return an array whose first element is the price and the second one is the estimate of the error
+	 */
+	public double[] getValueAndError() {
+		if (!(initialPrice > lowerBarrier && initialPrice < upperBarrier)) {
+			//the option is knocked out at time 0
+			numbersOfTimeSteps = new int[0];
+			return new double[] {0.0, 0.0};
+		}
+
+		//the option has only one barrier, see the constructor: we put a layer of nodes on it
+		double barrier = lowerBarrier > 0 ? lowerBarrier : upperBarrier;
+		double distanceToBarrier = Math.abs(Math.log(barrier / initialPrice));
+
+		/*
+		 * With n = k*eta^2 time steps, lambda = |log(B/S_0)|*sqrt(k)/(sigma*sqrt(T)) does not depend on eta: we take
+		 * the smallest k for which it is at least MINIMUM_STRETCH_PARAMETER.
+		 */
+		int stepsFactor = (int) Math.ceil(MINIMUM_STRETCH_PARAMETER * MINIMUM_STRETCH_PARAMETER * volatility * volatility
+				* maturity / (distanceToBarrier * distanceToBarrier));
+		stepsFactor = Math.max(stepsFactor, 1);
+		int firstNumberOfMovementsToBarrier = Math.max((int) Math.ceil(Math.sqrt((double) minimumNumberOfTimeSteps / stepsFactor)), 1);
+
+		numbersOfTimeSteps = new int[numberOfExtrapolationLevels];
+		double[] prices = new double[numberOfExtrapolationLevels];
+		for (int level = 0; level < numberOfExtrapolationLevels; level++) {
+			int numberOfMovementsToBarrier = firstNumberOfMovementsToBarrier + level;
+			numbersOfTimeSteps[level] = stepsFactor * numberOfMovementsToBarrier * numberOfMovementsToBarrier;
+			BarrierMatchingTrinomialModel model = new BarrierMatchingTrinomialModel(initialPrice, riskFreeRate, volatility,
+					maturity, numbersOfTimeSteps[level] + 1, barrier, numberOfMovementsToBarrier);
+			prices[level] = option.getValueWithSmoothedLastStep(model, riskFreeRate, volatility);
+		}
+
+		/*
+		 * Neville's algorithm: after the iteration with the given order, extrapolatedPrices[level] is the value at 0
+		 * of the polynomial in 1/n through the prices of the levels from level to level+order. The last two values are
+		 * the extrapolations with all the levels and with all the levels but the first one.
+		 */
+		double[] extrapolatedPrices = prices.clone();
+		double previousOrderExtrapolation = prices[numberOfExtrapolationLevels - 1];
+		for (int order = 1; order < numberOfExtrapolationLevels; order++) {
+			previousOrderExtrapolation = extrapolatedPrices[1];
+			for (int level = 0; level + order < numberOfExtrapolationLevels; level++) {
+				double firstStep = 1.0 / numbersOfTimeSteps[level];
+				double lastStep = 1.0 / numbersOfTimeSteps[level + order];
+				extrapolatedPrices[level] = (firstStep * extrapolatedPrices[level + 1] - lastStep * extrapolatedPrices[level])
+						/ (firstStep - lastStep);
+			}
+		}
+		double price = extrapolatedPrices[0];
+		return new double[] {price, Math.abs(price - previousOrderExtrapolation)};
+	}
+
+	/**
+	 * It returns the extrapolated price of the option
+	 * @return the extrapolated price of the option
+	 */
+	public double getValue() {
+		return getValueAndError()[0];
+	}
+
+	/**
+	 * It sets the minimum number of time steps of the smallest tree. By default it is 100.
+	 *
+	 * @param minimumNumberOfTimeSteps the minimum number of time steps of the smallest tree
+	 */
+	public void setMinimumNumberOfTimeSteps(int minimumNumberOfTimeSteps) {
+		this.minimumNumberOfTimeSteps = minimumNumberOfTimeSteps;
+	}
+
+	/**
+	 * It sets the number of trees whose prices are extrapolated: two give an error of order 1/n^2, three of order
+	 * 1/n^3. By default it is three.
+	 *
+	 * @param numberOfExtrapolationLevels the number of trees, at least two
+	 */
+	public void setNumberOfExtrapolationLevels(int numberOfExtrapolationLevels) {
+		if (numberOfExtrapolationLevels < 2) {
+			throw new IllegalArgumentException("Error: we need at least two trees to extrapolate!");
+		}
+		this.numberOfExtrapolationLevels = numberOfExtrapolationLevels;
+	}
+
+	/**
+	 * It returns the numbers of time steps of the trees used in the last call of getValueAndError
+	 * @return the numbers of time steps of the trees of the last valuation
+	 */
+	public int[] getNumbersOfTimeSteps() {
+		return numbersOfTimeSteps.clone();
+	}
+}
@@ -31,8 +31,9 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	 * In order for this field to be defined here, we have to make it possible to construct as both a
 	 * Binomial and Trinomial model. A solution is to create an interface TreeModelInterface which gets
 	 * implemented by BinomialModel and TrinomialModel.
+	 * It is volatile because the same model can be used by many threads, see getTreeModel.
 	 */
-	protected TreeModelInterface ourTreeModel;
+	protected volatile TreeModelInterface ourTreeModel;
 	
 	/**
 	 * It constructs an object of type ApproximatingTreeModelForBlackScholes.
@@ -83,6 +84,27 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	 */
 	protected abstract void generateTreeModel();
 
+	/*
+	 * It returns ourTreeModel, and generates it if it is the first time we need it: we want to generate it only once!
+	 * If many threads use the same model, they could all find it null at the same time: so if it is null we check it
+	 * again while holding the lock of the object, and only the first thread generates it (double-checked locking).
+	 * The other ones then find it already there. Since the field is volatile, the threads which find it not null
+	 * without taking the lock also see it completely constructed.
+	 */
+	private TreeModelInterface getTreeModel() {
+		TreeModelInterface treeModel = ourTreeModel;
+		if (treeModel == null) {
+			synchronized (this) {
+				treeModel = ourTreeModel;
+				if (treeModel == null) {
+					generateTreeModel();
+					treeModel = ourTreeModel;
+				}
+			}
+		}
+		return treeModel;
+	}
+
 
 	//all next methods are pure delegation to ourTreeModel
 	/**
@@ -95,12 +117,8 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	 */
 	@Override
 	public double[] getValuesAtGivenTimeIndex(int timeIndex) {
-		//we want to generate ourTreeModel only once! So we check if it is null: if yes, we have to generate it
-		if (ourTreeModel==null) {
-			generateTreeModel();
-		}
 		//pure delegation
-		return ourTreeModel.getValuesAtGivenTimeIndex(timeIndex);
+		return getTreeModel().getValuesAtGivenTimeIndex(timeIndex);
 	}
 
 	
@@ -115,12 +133,8 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	@Override
 	public double[] getValuesAtGivenTime(double time) {
 		int timeIndex = (int) Math.round(time/timeStep);
-		//we want to generate ourTreeModel only once! So we check if it is null: if yes, we have to generate it
-		if (ourTreeModel==null) {
-			generateTreeModel();
-		}
 		//pure delegation
-		return ourTreeModel.getValuesAtGivenTimeIndex(timeIndex);
+		return getTreeModel().getValuesAtGivenTimeIndex(timeIndex);
 	}
 	
 	
@@ -137,12 +151,8 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	 */
 	@Override
 	public double[] getTransformedValuesAtGivenTimeIndex(int timeIndex, DoubleUnaryOperator transformFunction) {
-		//we want to generate ourTreeModel only once! So we check if it is null: if yes, we have to generate it
-		if (ourTreeModel==null) {
-			generateTreeModel();
-		}
 		//pure delegation
-		return ourTreeModel.getTransformedValuesAtGivenTimeIndex(timeIndex, transformFunction);
+		return getTreeModel().getTransformedValuesAtGivenTimeIndex(timeIndex, transformFunction);
 	}
 	
 
@@ -159,12 +169,8 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	@Override
 	public double[] getTransformedValuesAtGivenTime(double time, DoubleUnaryOperator transformFunction) {
 		int timeIndex = (int) Math.round(time/timeStep);
-		//we want to generate ourTreeModel only once! So we check if it is null: if yes, we have to generate it
-		if (ourTreeModel==null) {
-			generateTreeModel();
-		}
 		//pure delegation
-		return ourTreeModel.getTransformedValuesAtGivenTimeIndex(timeIndex, transformFunction);
+		return getTreeModel().getTransformedValuesAtGivenTimeIndex(timeIndex, transformFunction);
 	}
 
 
@@ -178,11 +184,81 @@ public abstract class ApproximatingTreeModelForBlackScholes implements Approxima
 	 */
 	@Override
 	public double[] getConditionalExpectation(double[] optionValues,int timeIndex) {
-		//we want to generate ourTreeModel only once! So we check if it is null: if yes, we have to generate it
-		if (ourTreeModel==null) {
-			generateTreeModel();
-		}
-		return ourTreeModel.getConditionalExpectation(optionValues, timeIndex);
+		return getTreeModel().getConditionalExpectation(optionValues, timeIndex);
+	}
+
+	/**
+	 * It overwrites the first elements of the given array, which are the values at timeIndex+1 of (possibly a
+	 * function of) the approximating model, with their discounted conditional expectations at timeIndex.
+	 * 
+	 * @param optionValues, the values at timeIndex+1: the first getNumberOfNodesAtGivenTimeIndex(timeIndex)
+	 * 		  elements get overwritten by the conditional expectations
+	 * @param timeIndex, the time index
+	 */
+	@Override
+	public void overwriteWithConditionalExpectation(double[] optionValues, int timeIndex) {
+		//pure delegation
+		getTreeModel().overwriteWithConditionalExpectation(optionValues, timeIndex);
+	}
+
+	/**
+	 * It overwrites the elements from firstNodeIndex to lastNodeIndex of the given array, which are the values at
+	 * timeIndex+1 of (possibly a function of) the approximating model, with their discounted conditional expectations
+	 * at timeIndex. The other elements are not touched.
+	 * 
+	 * @param optionValues, the values at timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node at timeIndex whose conditional expectation is computed
+	 * @param lastNodeIndex, the last node at timeIndex whose conditional expectation is computed
+	 */
+	@Override
+	public void overwriteWithConditionalExpectation(double[] optionValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex) {
+		//pure delegation
+		getTreeModel().overwriteWithConditionalExpectation(optionValues, timeIndex, firstNodeIndex, lastNodeIndex);
+	}
+
+	/**
+	 * It writes in destination the discounted conditional expectations at timeIndex of the given values at
+	 * timeIndex+1 for the nodes from firstNodeIndex to lastNodeIndex, and zero for the other nodes at timeIndex.
+	 * 
+	 * @param optionValues, the values at timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node at timeIndex inside the barriers
+	 * @param lastNodeIndex, the last node at timeIndex inside the barriers
+	 * @param destination, the array which gets overwritten: it can be optionValues itself
+	 */
+	@Override
+	public void writeConditionalExpectationInsideBarriers(double[] optionValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex, double[] destination) {
+		//pure delegation
+		getTreeModel().writeConditionalExpectationInsideBarriers(optionValues, timeIndex, firstNodeIndex, lastNodeIndex,
+				destination);
+	}
+
+	/**
+	 * It returns the value of the approximating tree model at the given time index and node, without copying
+	 * the array of all the values at the time index.
+	 * 
+	 * @param timeIndex, the given time index as an int
+	 * @param nodeIndex, the index of the node: 0 is the one with the biggest value
+	 * @return the value of the approximating tree model at the given time index and node
+	 */
+	@Override
+	public double getValueAtGivenTimeIndexAndNode(int timeIndex, int nodeIndex) {
+		//pure delegation
+		return getTreeModel().getValueAtGivenTimeIndexAndNode(timeIndex, nodeIndex);
+	}
+
+	/**
+	 * It returns the number of possible values of the approximating tree model at the given time index
+	 * @param timeIndex, the given time index as an int
+	 * @return the number of possible values of the approximating tree model at the given time index
+	 */
+	@Override
+	public int getNumberOfNodesAtGivenTimeIndex(int timeIndex) {
+		//pure delegation
+		return getTreeModel().getNumberOfNodesAtGivenTimeIndex(timeIndex);
 	}
 
 	/*
@@ -68,6 +68,63 @@ public interface ApproximatingTreeModelInterface {
 	 * @return the array of the discounted conditional expectations at timeIndex of optionValues. 
 	 */
 	double[] getConditionalExpectation(double[] optionValues,int timeIndex);
+
+	/**
+	 * It overwrites the first elements of the given array, which are the values at timeIndex+1 of (possibly a
+	 * function of) the approximating model, with their discounted conditional expectations at timeIndex. In this
+	 * way we can go backward in the tree with a single array, without allocating a new one at every time.
+	 * 
+	 * @param optionValues, the values at timeIndex+1: the first getNumberOfNodesAtGivenTimeIndex(timeIndex)
+	 * 		  elements get overwritten by the conditional expectations
+	 * @param timeIndex, the time index
+	 */
+	void overwriteWithConditionalExpectation(double[] optionValues, int timeIndex);
+
+	/**
+	 * It overwrites the elements from firstNodeIndex to lastNodeIndex of the given array, which are the values at
+	 * timeIndex+1 of (possibly a function of) the approximating model, with their discounted conditional expectations
+	 * at timeIndex. The other elements are not touched: this is useful when we know that the values at timeIndex
+	 * are zero outside these nodes, for example for a barrier option, so that we do not compute them.
+	 * 
+	 * @param optionValues, the values at timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node at timeIndex whose conditional expectation is computed
+	 * @param lastNodeIndex, the last node at timeIndex whose conditional expectation is computed
+	 */
+	void overwriteWithConditionalExpectation(double[] optionValues, int timeIndex, int firstNodeIndex, int lastNodeIndex);
+
+	/**
+	 * It writes in destination the discounted conditional expectations at timeIndex of the given values at
+	 * timeIndex+1 of (possibly a function of) the approximating model for the nodes from firstNodeIndex to
+	 * lastNodeIndex, and zero for the other nodes at timeIndex. This is a step backward in the tree for a barrier
+	 * option, whose value is zero at the nodes outside the barriers: the conditional expectations and the zeros are
+	 * written in a single loop, see TreeModelInterface.writeConditionalExpectationInsideBarriers.
+	 * 
+	 * @param optionValues, the values at timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node at timeIndex inside the barriers
+	 * @param lastNodeIndex, the last node at timeIndex inside the barriers
+	 * @param destination, the array which gets overwritten: it can be optionValues itself
+	 */
+	void writeConditionalExpectationInsideBarriers(double[] optionValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex, double[] destination);
+
+	/**
+	 * It returns the value of the approximating tree model at the given time index and node, that is, the element
+	 * in position nodeIndex of getValuesAtGivenTimeIndex(timeIndex), without copying the array.
+	 * 
+	 * @param timeIndex, the given time index as an int
+	 * @param nodeIndex, the index of the node: 0 is the one with the biggest value
+	 * @return the value of the approximating tree model at the given time index and node
+	 */
+	double getValueAtGivenTimeIndexAndNode(int timeIndex, int nodeIndex);
+
+	/**
+	 * It returns the number of possible values of the approximating tree model at the given time index
+	 * @param timeIndex, the given time index as an int
+	 * @return the number of possible values of the approximating tree model at the given time index
+	 */
+	int getNumberOfNodesAtGivenTimeIndex(int timeIndex);
 	
 	/**
 	 * It returns the initial price of the approximated model
@@ -0,0 +1,167 @@
+package it.univr.dissertation.usefulclass;
+
+/**
+ * This class represents the approximation of a Black-Scholes model via a trinomial model whose nodes lie exactly on
+ * a given barrier, as in the model of Ritchken (1995). It extends ApproximatingTrinomialModel.
+ * In the Cox-Ross-Rubinstein model the barrier is in general between two layers of nodes, and the price of a
+ * barrier option oscillates a lot in the number of times: one way to avoid it is to choose the number of times
+ * such that the barrier is (almost) on a layer, see Boyle and Lau (1994). Here instead we keep the number of times
+ * and choose the up factor u=exp(lambda*sigma*sqrt(dt)): the stretch parameter lambda is the smallest number bigger
+ * than LAMBDA_OF_EQUAL_PROBABILITIES such that the barrier is reached after an integer number eta of down (or up)
+ * movements, that is, |log(B/S_0)| = eta*lambda*sigma*sqrt(dt). The up probability is then
+ * q_u = 1/(2*lambda^2) + (r - sigma^2/2)*sqrt(dt)/(2*lambda*sigma).
+ */
+public class BarrierMatchingTrinomialModel extends ApproximatingTrinomialModel {
+
+	/*
+	 * With lambda = sqrt(3/2) the three probabilities are about 1/3: we do not go below it, so that the probability
+	 * to stay the same is always bigger than about 1/3.
+	 */
+	private static final double LAMBDA_OF_EQUAL_PROBABILITIES = Math.sqrt(1.5);
+
+	/*
+	 * The layer of the nodes is put a tiny bit farther than the barrier from the initial price, in logarithmic scale,
+	 * so that the rounding errors in the powers of u cannot bring the node on the barrier inside the interval: since
+	 * the barrier is not reached strictly inside the interval, the option must be knocked out there. Note that the
+	 * relative error of u^k*d^n grows linearly in the number of times, so the shift cannot be of the order of the
+	 * machine precision.
+	 */
+	private static final double SHIFT_OF_BARRIER_LAYER = 1E-9;
+
+	private final double barrier;
+	private final double stretchParameter;
+	private final int numberOfMovementsToBarrier;
+
+	/**
+	 * It constructs an object which represents the approximation of a Black-Scholes model via a trinomial model
+	 * with a layer of nodes on the given barrier.
+	 *
+	 * @param initialPrice, the initial price of the asset modeled by the process
+	 * @param riskFreeRate, the number r such that the value of a risk-free bond at time T is e^(rT)
+	 * @param volatility, the log-volatility of the Black-Scholes model
+	 * @param lastTime, the last time T in the time discretization 0=t_0<t_1<..<t_n=T
+	 * @param timeStep, the length t_k-t_{k-1} of the equally spaced time steps that we take for the approximating
+	 * time discretization 0=t_0<t_1<..<t_n=T
+	 * @param barrier, the barrier on which we want a layer of nodes, lower or upper
+	 */
+	public BarrierMatchingTrinomialModel(double initialPrice, double riskFreeRate, double volatility,
+			double lastTime, double timeStep, double barrier) {
+		super(initialPrice, riskFreeRate, volatility, lastTime, timeStep);
+		this.barrier = barrier;
+		numberOfMovementsToBarrier = computeNumberOfMovementsToBarrier();
+		stretchParameter = computeStretchParameter();
+	}
+
+	/**
+	 * It constructs an object which represents the approximation of a Black-Scholes model via a trinomial model
+	 * with a layer of nodes on the given barrier.
+	 *
+	 * @param initialPrice, the initial price of the asset modeled by the process
+	 * @param riskFreeRate, the number r such that the value of a risk-free bond at time T is e^(rT)
+	 * @param volatility, the log-volatility of the Black-Scholes model
+	 * @param lastTime, the last time T in the time discretization 0=t_0<t_1<..<t_n=T
+	 * @param numberOfTimes, the number of times in the equally spaced time steps that we take for the approximating
+	 * time discretization 0=t_0<t_1<..<t_n=T
+	 * @param barrier, the barrier on which we want a layer of nodes, lower or upper
+	 */
+	public BarrierMatchingTrinomialModel(double initialPrice, double riskFreeRate, double volatility,
+			double lastTime, int numberOfTimes, double barrier) {
+		super(initialPrice, riskFreeRate, volatility, lastTime, numberOfTimes);
+		this.barrier = barrier;
+		numberOfMovementsToBarrier = computeNumberOfMovementsToBarrier();
+		stretchParameter = computeStretchParameter();
+	}
+
+	/**
+	 * It constructs an object which represents the approximation of a Black-Scholes model via a trinomial model
+	 * where the barrier is reached after the given number of down (or up) movements. In this way the stretch parameter
+	 * lambda = |log(B/S_0)|/(eta*sigma*sqrt(dt)) can be kept the same for different numbers of times, by taking the
+	 * number of time steps proportional to eta^2: this is what we need to extrapolate the prices, see
+	 * BarrierOptionTreeRichardsonExtrapolation.
+	 *
+	 * @param initialPrice, the initial price of the asset modeled by the process
+	 * @param riskFreeRate, the number r such that the value of a risk-free bond at time T is e^(rT)
+	 * @param volatility, the log-volatility of the Black-Scholes model
+	 * @param lastTime, the last time T in the time discretization 0=t_0<t_1<..<t_n=T
+	 * @param numberOfTimes, the number of times in the equally spaced time steps that we take for the approximating
+	 * time discretization 0=t_0<t_1<..<t_n=T
+	 * @param barrier, the barrier on which we want a layer of nodes, lower or upper
+	 * @param numberOfMovementsToBarrier, the number eta of movements from the initial price to the barrier
+	 */
+	public BarrierMatchingTrinomialModel(double initialPrice, double riskFreeRate, double volatility,
+			double lastTime, int numberOfTimes, double barrier, int numberOfMovementsToBarrier) {
+		super(initialPrice, riskFreeRate, volatility, lastTime, numberOfTimes);
+		this.barrier = barrier;
+		if (!(barrier > 0) || barrier == getInitialPrice() || numberOfMovementsToBarrier < 1) {
+			throw new IllegalArgumentException("Error: the barrier must be positive and different from the initial price!");
+		}
+		this.numberOfMovementsToBarrier = numberOfMovementsToBarrier;
+		stretchParameter = computeStretchParameter();
+		//for lambda < 1 the probability to stay the same would be negative
+		if (stretchParameter < 1) {
+			throw new IllegalArgumentException("Error: too many movements to the barrier for this time step!");
+		}
+	}
+
+	/*
+	 * The biggest integer eta such that eta*LAMBDA_OF_EQUAL_PROBABILITIES*sigma*sqrt(dt) <= |log(B/S_0)|
+	 */
+	private int computeNumberOfMovementsToBarrier() {
+		if (!(barrier > 0) || barrier == getInitialPrice()) {
+			throw new IllegalArgumentException("Error: the barrier must be positive and different from the initial price!");
+		}
+		double distanceToBarrier = Math.abs(Math.log(barrier / getInitialPrice()));
+		int eta = (int) Math.floor(distanceToBarrier / (LAMBDA_OF_EQUAL_PROBABILITIES * getVolatility() * Math.sqrt(getTimeStep())));
+		if (eta < 1) {
+			throw new IllegalArgumentException("Error: the barrier is too close to the initial price for this time step!");
+		}
+		return eta;
+	}
+
+	//lambda = |log(B/S_0)|/(eta*sigma*sqrt(dt)), which is bigger or equal than LAMBDA_OF_EQUAL_PROBABILITIES
+	private double computeStretchParameter() {
+		double distanceToBarrier = Math.abs(Math.log(barrier / getInitialPrice())) + SHIFT_OF_BARRIER_LAYER;
+		return distanceToBarrier / (numberOfMovementsToBarrier * getVolatility() * Math.sqrt(getTimeStep()));
+	}
+
+	/**
+	 * It computes and returns the up probability and the up factor of the trinomial model with a layer of nodes on
+	 * the barrier.
+	 * @return an array of two elements: the first is the up probability, the second the up factor
+	 */
+	@Override
+	protected double[] getUpFactorAndUpProbabilityOfTrinomialModel() {
+		double volatility = getVolatility();
+		double squareRootOfTimeStep = Math.sqrt(getTimeStep());
+		double upFactor = Math.exp(stretchParameter * volatility * squareRootOfTimeStep);
+		double drift = getRiskFreeRate() - 0.5 * volatility * volatility;
+		double probabilityUp = 1.0 / (2 * stretchParameter * stretchParameter)
+				+ drift * squareRootOfTimeStep / (2 * stretchParameter * volatility);
+		double[] upProbabilityAndUpFactor = {probabilityUp, upFactor};
+		return upProbabilityAndUpFactor;
+	}
+
+	/**
+	 * It returns the stretch parameter lambda such that the up factor is exp(lambda*sigma*sqrt(dt))
+	 * @return the stretch parameter lambda
+	 */
+	public double getStretchParameter() {
+		return stretchParameter;
+	}
+
+	/**
+	 * It returns the number of consecutive down (or up) movements after which the underlying is on the barrier
+	 * @return the number of movements from the initial price to the barrier
+	 */
+	public int getNumberOfMovementsToBarrier() {
+		return numberOfMovementsToBarrier;
+	}
+
+	/**
+	 * It returns the barrier on which the model has a layer of nodes
+	 * @return the barrier
+	 */
+	public double getBarrier() {
+		return barrier;
+	}
+}
@@ -0,0 +1,154 @@
+package it.univr.dissertation.usefulclass;
+
+import java.util.Arrays;
+
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.assetderivativevaluation.AssetModelMonteCarloSimulationModel;
+import net.finmath.stochastic.RandomVariable;
+import net.finmath.time.TimeDiscretization;
+
+/**
+ * This class computes, path by path, the probability that the simulated realizations of an underlying X stay
+ * inside the interval [B_L,B_U] at all times t <= T, also between the times of the time discretization of the
+ * model. The check only at the times of the time discretization is given by the running extrema of the paths,
+ * see PathExtremumCache.fillInsideBarrierIndicator.
+ *
+ * Differently from what we would get by calling apply(...) and mult(...) on objects of type RandomVariable,
+ * here no new RandomVariable is constructed at any time: the realizations of the underlying are scanned once
+ * and the result is written in a primitive double[] buffer, which is the same for all the times of the time
+ * discretization. In this way, the memory needed is O(number of paths) and does not depend on the number of
+ * time steps.
+ */
+public class BarrierPathMonitor {
+
+	private final double lowerBarrier;
+	private final double upperBarrier;
+
+	/**
+	 * It constructs an object which checks if the paths of an underlying stay inside [B_L,B_U].
+	 *
+	 * @param lowerBarrier the lower barrier B_L
+	 * @param upperBarrier the upper barrier B_U
+	 */
+	public BarrierPathMonitor(double lowerBarrier, double upperBarrier) {
+		this.lowerBarrier = lowerBarrier;
+		this.upperBarrier = upperBarrier;
+	}
+
+	/**
+	 * It returns an array whose i-th element is the probability that the i-th path of the underlying stays
+	 * inside [B_L,B_U] at all times t <= maturity, and not only at the times of the time discretization.
+	 * This is computed by supposing that between two consecutive times t_k and t_{k+1} the logarithm of the
+	 * underlying is a Brownian bridge from log(X_{t_k}) to log(X_{t_{k+1}}) with volatility sigma. For such a
+	 * bridge, the probability to cross the lower barrier is
+	 * exp(-2 log(X_{t_k}/B_L) log(X_{t_{k+1}}/B_L) / (sigma^2 (t_{k+1}-t_k))),
+	 * and the same holds for the upper barrier with log(B_U/X_{t_k}) and log(B_U/X_{t_{k+1}}).
+	 * The survival probability of the path is the product over the time steps of one minus these two
+	 * probabilities (floored at zero), and it is zero if the path is outside [B_L,B_U] at some t_k.
+	 *
+	 * @param model the model simulating the underlying
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @param maturity the last time at which we check the barrier
+	 * @param volatility the log-volatility sigma of the underlying, used for the Brownian bridge
+	 * @return the array of the survival probabilities of the paths
+	 * @throws CalculationException
+	 */
+	public double[] getSurvivalProbabilities(AssetModelMonteCarloSimulationModel model, int underlyingIndex, double maturity,
+			double volatility) throws CalculationException {
+		double[] survivalProbabilities = new double[model.getNumberOfPaths()];
+		fillSurvivalProbabilities(model, underlyingIndex, maturity, volatility, survivalProbabilities);
+		return survivalProbabilities;
+	}
+
+	/**
+	 * It writes in the given buffer the survival probabilities returned by getSurvivalProbabilities.
+	 *
+	 * @param model the model simulating the underlying
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @param maturity the last time at which we check the barrier
+	 * @param volatility the log-volatility sigma of the underlying, used for the Brownian bridge
+	 * @param survivalProbabilities the buffer, of length equal to the number of paths, which gets overwritten
+	 * @throws CalculationException
+	 */
+	public void fillSurvivalProbabilities(AssetModelMonteCarloSimulationModel model, int underlyingIndex, double maturity,
+			double volatility, double[] survivalProbabilities) throws CalculationException {
+		if (volatility <= 0) {
+			throw new IllegalArgumentException("Error: the volatility must be positive for the Brownian bridge correction!");
+		}
+		int numberOfPaths = model.getNumberOfPaths();
+		if (survivalProbabilities.length != numberOfPaths) {
+			throw new IllegalArgumentException("Error: the buffer must have length equal to the number of paths!");
+		}
+		Arrays.fill(survivalProbabilities, 1.0);
+
+		//if one barrier is not there, we do not want to compute the logarithm with respect to it
+		boolean isLowerBarrierActive = lowerBarrier > 0;
+		boolean isUpperBarrierActive = upperBarrier < Double.POSITIVE_INFINITY;
+
+		TimeDiscretization timeDiscretizationOfTheUnderlying = model.getTimeDiscretization();
+		RandomVariable realizationsAtPreviousTime = model.getAssetValue(0, underlyingIndex);
+		checkRealizations(realizationsAtPreviousTime, survivalProbabilities);
+
+		for (int timeIndex = 1; timeIndex < timeDiscretizationOfTheUnderlying.getNumberOfTimes(); timeIndex++) {
+			double currentTime = timeDiscretizationOfTheUnderlying.getTime(timeIndex);
+			if (currentTime > maturity) {
+				break;
+			}
+			double timeStep = currentTime - timeDiscretizationOfTheUnderlying.getTime(timeIndex - 1);
+			//this is 2/(sigma^2 (t_{k+1}-t_k)), the same for all paths
+			double factor = 2.0 / (volatility * volatility * timeStep);
+
+			RandomVariable realizationsAtCurrentTime = model.getAssetValue(timeIndex, underlyingIndex);
+			for (int pathIndex = 0; pathIndex < numberOfPaths; pathIndex++) {
+				if (survivalProbabilities[pathIndex] == 0.0) {
+					continue;
+				}
+				double previousRealization = realizationsAtPreviousTime.get(pathIndex);
+				double currentRealization = realizationsAtCurrentTime.get(pathIndex);
+				if (!(currentRealization >= lowerBarrier && currentRealization <= upperBarrier)) {
+					survivalProbabilities[pathIndex] = 0.0;
+					continue;
+				}
+				double probabilityToCross = 0.0;
+				if (isLowerBarrierActive) {
+					probabilityToCross += Math.exp(-factor * Math.log(previousRealization / lowerBarrier)
+							* Math.log(currentRealization / lowerBarrier));
+				}
+				if (isUpperBarrierActive) {
+					probabilityToCross += Math.exp(-factor * Math.log(upperBarrier / previousRealization)
+							* Math.log(upperBarrier / currentRealization));
+				}
+				survivalProbabilities[pathIndex] *= Math.max(1.0 - probabilityToCross, 0.0);
+			}
+			realizationsAtPreviousTime = realizationsAtCurrentTime;
+		}
+	}
+
+	/*
+	 * It sets to zero the elements of the buffer corresponding to the realizations which are outside [B_L,B_U].
+	 */
+	private void checkRealizations(RandomVariable realizations, double[] buffer) {
+		for (int pathIndex = 0; pathIndex < buffer.length; pathIndex++) {
+			double realization = realizations.get(pathIndex);
+			if (!(realization >= lowerBarrier && realization <= upperBarrier)) {
+				buffer[pathIndex] = 0.0;
+			}
+		}
+	}
+
+	/**
+	 * It returns the lower barrier B_L
+	 * @return the lower barrier B_L
+	 */
+	public double getLowerBarrier() {
+		return lowerBarrier;
+	}
+
+	/**
+	 * It returns the upper barrier B_U
+	 * @return the upper barrier B_U
+	 */
+	public double getUpperBarrier() {
+		return upperBarrier;
+	}
+}
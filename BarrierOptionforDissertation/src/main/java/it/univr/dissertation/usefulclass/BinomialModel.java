@@ -2,6 +2,7 @@ package it.univr.dissertation.usefulclass;
 
 import java.util.Arrays;
 import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
 
 
 
@@ -29,9 +30,16 @@ public class BinomialModel implements TreeModelInterface {
 
 	private int numberOfTimes;
 
-	//these fields will be initialized and set in private methods. For now their values is "null".
-	private double[][] valuesProbabilities;
-	private double[][] values;
+	/*
+	 * These fields will be initialized and set in private methods. For now their values is "null".
+	 * They are volatile because the same model can be used by many threads, see generateValues.
+	 */
+	private volatile double[][] valuesProbabilities;
+	//see setParallelProbabilityGeneration
+	private boolean isGeneratingProbabilitiesInParallel = false;
+	//upPowers[k]=u^k and downPowers[k]=d^k, for k=0,...,numberOfTimes-1: see generateValues
+	private volatile double[] upPowers;
+	private double[] downPowers;
 
 	/**
 	 * It construct an object representing a Binomial model.
@@ -59,80 +67,88 @@ public class BinomialModel implements TreeModelInterface {
 
 	/*
 	 * This method is private! This is our inner implementation, behind the scenes. We don't want an user of our
-	 * class to access it. The method sets values to be a matrix whose row n represents the possible values of the
-	 * binomial model at time index n. However, the last values of the row are zero, because at time n the binomial
-	 * model can only take n+1 values. Note that this could cause confusion if somebody is directly aware of this
-	 * method.
-	 */
-	
-	/*
-	 * [S_0 0 0 0 0 0 0 0]
-	 * [S_0*u S_0*d 0 0 0 0 0 0]
-	 * [S_0*u^2 S_0*u*d S_0*d^2 0 0 0 0 0 0]
-	 * ....
+	 * class to access it. The value of the binomial model at time index n when it has gone down i times is
+	 * S_0*u^(n-i)*d^i: so instead of a matrix whose row n contains these values (more than half of which would be
+	 * zero, and which would need numberOfTimes^2 doubles) we only store the powers
+	 * [1 u u^2 ... u^(numberOfTimes-1)]
+	 * [1 d d^2 ... d^(numberOfTimes-1)]
+	 * and compute the values when we need them, see getValueAtGivenTimeIndexAndNode. In this way the memory is
+	 * linear in the number of times. The powers are computed with Math.pow, so the values are exactly the same as
+	 * the ones we would get computing S_0*Math.pow(u,n-i)*Math.pow(d,i) directly.
+	 * The method is synchronized and checks again if the powers are there, so if many threads call it at the same
+	 * time they are computed only once. Moreover, upPowers is volatile and is set last: a thread which sees it not
+	 * null also sees the arrays completely filled, and does not need to synchronize.
 	 */
-	private void generateValues() {
-		values = new double[numberOfTimes][numberOfTimes];
-		values[0][0] = initialValue;
-		int numberOfDowns;//it will be updated in the for loop
-		for (int numberOfMovements = 1; numberOfMovements < numberOfTimes; numberOfMovements++) {
-			for (int numberOfUps = 0; numberOfUps <= numberOfMovements; numberOfUps++) {
-				numberOfDowns=numberOfMovements-numberOfUps;
-				/*
-				 * Value of the binomial model when it went numberOfUps times up and numberOfDowns times down.
-				 * Note that this is stored in position numberOfDowns! So the first position has all ups and so on
-				 */
-				values[numberOfMovements][numberOfDowns] = values[0][0] * Math.pow(upFactor, numberOfUps)*
-						Math.pow(downFactor, numberOfDowns);
-			}
+	private synchronized void generateValues() {
+		if (upPowers != null) {
+			return;
+		}
+		double[] powersOfUpFactor = new double[numberOfTimes];
+		double[] powersOfDownFactor = new double[numberOfTimes];
+		for (int exponent = 0; exponent < numberOfTimes; exponent++) {
+			powersOfUpFactor[exponent] = Math.pow(upFactor, exponent);
+			powersOfDownFactor[exponent] = Math.pow(downFactor, exponent);
 		}
+		downPowers = powersOfDownFactor;
+		upPowers = powersOfUpFactor;
 	}
 
 	/*
 	 * This method is private! This is our inner implementation, behind the scenes. We don't want an user of our
-	 * class to access it. The method sets valuesProbabilities to be a matrix whose row n represents the probabilities
-	 * of the corresponding values of the binomial model at time index n. However, the last values of the row are
-	 * zero, because at time n the binomial model can only take n+1 values. Note that this could cause confusion
-	 * if somebody is directly aware of this method.
+	 * class to access it. The method sets valuesProbabilities to be a triangular array whose row n, of length n+1,
+	 * represents the probabilities of the corresponding values of the binomial model at time index n.
+	 * As generateValues, it is synchronized and the volatile field is set only when the array is complete.
 	 */
 	
 	/*
-	 * [S_0 0 0 0 0 0 0 0]
-	 * [Q(S_0*u) Q(S_0*d) 0 0 0 0 0 0]
-	 * [Q(S_0*u^2) Q(S_0*u*d) Q(S_0*d^2) 0 0 0 0 0 0]
+	 * [1]
+	 * [Q(S_0*u) Q(S_0*d)]
+	 * [Q(S_0*u^2) Q(S_0*u*d) Q(S_0*d^2)]
 	 * ....
 	 */
-	private void generateValuesProbabilities() {
-		valuesProbabilities = new double[numberOfTimes][numberOfTimes];
-		valuesProbabilities[0][0]=1;
-		int numberOfDowns;//it will be updated in the for loop
-		for (int numberOfMovements = 1; numberOfMovements < numberOfTimes; numberOfMovements++) {
-			/*
-			 * Here we have to take care of the computation of the binomial coefficient.  We are at
-			 * time n and start the next for loop with the case when we have k=0 ups. So we have
-			 * binomialCoefficient(n,k)=n!/(k!(n-k)!)=1 
-			 */
-			double binomialCoefficient = 1;
+	private synchronized void generateValuesProbabilities() {
+		if (valuesProbabilities != null) {
+			return;
+		}
+		/*
+		 * The probability of k ups in n movements is binomialCoefficient(n,k)*q^k*(1-q)^(n-k). If we compute it
+		 * like this, the binomial coefficient overflows to infinity for n bigger than about 1000, whereas q^k*(1-q)^(n-k)
+		 * goes to zero, and we get NaN. So we compute its logarithm
+		 * log(n!)-log(k!)-log((n-k)!)+k*log(q)+(n-k)*log(1-q),
+		 * which is well defined for any n, and then take the exponential. The logarithms of the factorials are
+		 * computed only once, as log(n!)=log((n-1)!)+log(n), so we do not need any call of Math.pow.
+		 */
+		double[] logFactorials = new double[numberOfTimes];
+		for (int n = 1; n < numberOfTimes; n++) {
+			logFactorials[n] = logFactorials[n - 1] + Math.log(n);
+		}
+		double logProbabilityUp = Math.log(riskNeutralProbabilityUp);
+		double logProbabilityDown = Math.log(riskNeutralProbabilityDown);
+
+		double[][] probabilities = new double[numberOfTimes][];
+		//every row only depends on the logarithms above, so the rows can also be computed in parallel
+		IntStream numbersOfMovements = IntStream.range(0, numberOfTimes);
+		if (isGeneratingProbabilitiesInParallel) {
+			numbersOfMovements = numbersOfMovements.parallel();
+		}
+		numbersOfMovements.forEach(numberOfMovements -> {
+			double[] probabilitiesAtGivenTimeIndex = new double[numberOfMovements + 1];
 			for (int numberOfUps = 0; numberOfUps <= numberOfMovements; numberOfUps++) {
-				numberOfDowns=numberOfMovements-numberOfUps;
+				int numberOfDowns = numberOfMovements - numberOfUps;
+				//we do not multiply by log(q) if there are no ups, so that we do not get 0*(-infinity) if q=0
+				double logProbability = logFactorials[numberOfMovements] - logFactorials[numberOfUps]
+						- logFactorials[numberOfDowns]
+						+ (numberOfUps == 0 ? 0.0 : numberOfUps * logProbabilityUp)
+						+ (numberOfDowns == 0 ? 0.0 : numberOfDowns * logProbabilityDown);
 				/*
 				 * Probability of having B(numberOfMovements)=B(0)u^numberOfUps*d^numberOfDowns.
 				 * Note that this is stored in position numberOfDowns! So the first position has all ups and so on
 				 */
-				valuesProbabilities[numberOfMovements][numberOfDowns]
-						= binomialCoefficient*Math.pow(riskNeutralProbabilityUp, numberOfUps)
-						* Math.pow(riskNeutralProbabilityDown, numberOfDowns);
-				/*
-				 * Here we update the value of the binomial coeffeicient computing the one
-				 * that we will use next, i.e., when we will have one more up: so, calling k
-				 * the actual number of ups, we have to compute 
-				 * binomialCoefficient(n,k+1)=n!/((k+1)!(n-k-1)!)=n!/(k!(n-k)!)*(n-k)/(k+1).
-				 * Since n!/(k!(n-k)!) is the last computed value, we multiply by (n-k) 
-				 * (so, by numberOfDowns) and divide by k+1, so, by the current number of ups plus 1.
-				 */
-				binomialCoefficient=binomialCoefficient * (numberOfDowns)/(numberOfUps+1);
+				probabilitiesAtGivenTimeIndex[numberOfDowns] = Math.exp(logProbability);
 			}
-		}
+			probabilities[numberOfMovements] = probabilitiesAtGivenTimeIndex;
+		});
+		valuesProbabilities = probabilities;
 	}
 
 	//the next methods are all public. Direct use from outside this class. 
@@ -147,19 +163,20 @@ public class BinomialModel implements TreeModelInterface {
 	@Override
 	public double[] getValuesAtGivenTimeIndex(int timeIndex) {
 		/*
-		 * Pay attention: the method generateValues() initializes the array values and sets it. This is
-		 * of course needed if we want to get those values. However, we want to do that only once!
-		 * So we check if values is null (this means "not yet initialized") and call the method only
+		 * Pay attention: the method generateValues() initializes the arrays of the powers of u and d and sets
+		 * them. This is of course needed if we want to get those values. However, we want to do that only once!
+		 * So we check if upPowers is null (this means "not yet initialized") and call the method only
 		 * in this case. 
 		 */
-		if (values == null) {
+		if (upPowers == null) {
 			generateValues();
 		}	
-		/*
-		 * We only return the first timeIndex entries! The others are zero, because the process can take
-		 * only timeIndex values at time index timeIndex.
-		 */
-		return Arrays.copyOfRange(values[timeIndex], 0, timeIndex+1);
+		//the process can take only timeIndex+1 values at time index timeIndex
+		double[] valuesAtGivenTimeIndex = new double[timeIndex + 1];
+		for (int numberOfDowns = 0; numberOfDowns <= timeIndex; numberOfDowns++) {
+			valuesAtGivenTimeIndex[numberOfDowns] = getValueAtGivenTimeIndexAndNode(timeIndex, numberOfDowns);
+		}
+		return valuesAtGivenTimeIndex;
 	}
 
 	/**
@@ -189,7 +206,7 @@ public class BinomialModel implements TreeModelInterface {
 	 */
 	public double[] getValuesProbabilitiesAtGivenTimeIndex(int timeIndex) {
 		/*
-		 * Pay attention: the method generateValues() initializes the array valuesProbabilities and sets it.
+		 * Pay attention: the method generateValuesProbabilities() initializes the array valuesProbabilities and sets it.
 		 * This is of course needed if we want to get those values. However, we want to do that only once!
 		 * So we check if valuesProbabilities is null (this means "not yet initialized") and call the method only
 		 * in this case. 
@@ -197,11 +214,8 @@ public class BinomialModel implements TreeModelInterface {
 		if (valuesProbabilities == null) {
 			generateValuesProbabilities();
 		}
-		/*
-		 * We only return the first timeIndex entries! The others are zero, because the process can take
-		 * only timeIndex values at time index timeIndex.
-		 */
-		return Arrays.copyOfRange(valuesProbabilities[timeIndex], 0, timeIndex + 1);
+		//we return a copy, so that the probabilities cannot be changed from outside
+		return valuesProbabilities[timeIndex].clone();
 	}
 
 	/**
@@ -228,6 +242,102 @@ public class BinomialModel implements TreeModelInterface {
 		return conditionalExpectation;
 	}
 	
+	/**
+	 * It overwrites the first timeIndex+1 elements of binomialValues, which are the values of (possibly a function of)
+	 * the binomial model at time timeIndex+1, with their discounted conditional expectations at timeIndex. Since the
+	 * i-th conditional expectation only needs the elements i and i+1, we can go from i=0 on and overwrite the i-th
+	 * element, which we do not need anymore. 
+	 * 
+	 * @param binomialValues, values of (possibly a function of) a binomial model at time timeIndex+1
+	 * @param timeIndex, the time index
+	 */
+	@Override
+	public void overwriteWithConditionalExpectation(double[] binomialValues, int timeIndex) {
+		overwriteWithConditionalExpectation(binomialValues, timeIndex, 0, timeIndex);
+	}
+
+	/**
+	 * It overwrites the elements from firstNodeIndex to lastNodeIndex of binomialValues, which are the values of
+	 * (possibly a function of) the binomial model at time timeIndex+1, with their discounted conditional expectations
+	 * at timeIndex. The other elements are not touched.
+	 * 
+	 * @param binomialValues, values of (possibly a function of) a binomial model at time timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first number of down movements for which we compute the conditional expectation
+	 * @param lastNodeIndex, the last number of down movements for which we compute the conditional expectation
+	 */
+	@Override
+	public void overwriteWithConditionalExpectation(double[] binomialValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex) {
+		for (int i = firstNodeIndex; i <= lastNodeIndex; i++) {
+			binomialValues[i] = (binomialValues[i]*riskNeutralProbabilityUp + binomialValues[i + 1]*riskNeutralProbabilityDown)/(1+riskFreeFactor);
+		}
+	}
+
+	/**
+	 * It writes in destination the discounted conditional expectations at timeIndex of binomialValues, which are the values
+	 * of (possibly a function of) the binomial model at time timeIndex+1, for the nodes from firstNodeIndex to
+	 * lastNodeIndex, and zero for the other nodes at timeIndex. Everything is done in one loop over the nodes inside
+	 * the barriers, plus the zeros: so for a barrier option we go through the array only once per time.
+	 * If destination is binomialValues itself, only two nodes on each side of the window are set to zero, as in
+	 * BarrierOptionTreeModels: the nodes inside the barriers at timeIndex-1 only look at the values near the window,
+	 * and the other ones are still zero if binomialValues was zero outside the barriers at timeIndex+1. Otherwise, all the
+	 * other nodes at timeIndex are set to zero.
+	 * 
+	 * @param binomialValues, values of (possibly a function of) a binomial model at time timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node inside the barriers at timeIndex
+	 * @param lastNodeIndex, the last node inside the barriers at timeIndex
+	 * @param destination, the array which gets overwritten: it can be binomialValues itself
+	 */
+	@Override
+	public void writeConditionalExpectationInsideBarriers(double[] binomialValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex, double[] destination) {
+		int numberOfNodes = timeIndex + 1;
+		boolean isInPlace = destination == binomialValues;
+		Arrays.fill(destination, isInPlace ? Math.max(firstNodeIndex - 2, 0) : 0, Math.min(firstNodeIndex, numberOfNodes), 0.0);
+		for (int i = firstNodeIndex; i <= lastNodeIndex; i++) {
+			destination[i] = (binomialValues[i]*riskNeutralProbabilityUp + binomialValues[i + 1]*riskNeutralProbabilityDown)/(1+riskFreeFactor);
+		}
+		Arrays.fill(destination, lastNodeIndex + 1, isInPlace ? Math.min(lastNodeIndex + 3, numberOfNodes) : numberOfNodes, 0.0);
+	}
+
+	/**
+	 * It returns the value of the binomial model at the given time index when the underlying has gone down nodeIndex
+	 * times. It is computed on the fly from the powers of u and d, so we do not need the matrix of all the values.
+	 * @param timeIndex, the given time index
+	 * @param nodeIndex, the number of down movements
+	 * @return the value B(0)*u^(timeIndex-nodeIndex)*d^nodeIndex
+	 */
+	@Override
+	public double getValueAtGivenTimeIndexAndNode(int timeIndex, int nodeIndex) {
+		if (upPowers == null) {
+			generateValues();
+		}
+		return initialValue * upPowers[timeIndex - nodeIndex] * downPowers[nodeIndex];
+	}
+
+	/**
+	 * It returns the number of possible values of the binomial model at the given time index, that is, timeIndex+1
+	 * @param timeIndex, the given time index
+	 * @return the number of possible values at the given time index
+	 */
+	@Override
+	public int getNumberOfNodesAtGivenTimeIndex(int timeIndex) {
+		return timeIndex + 1;
+	}
+
+	/**
+	 * If set to true, the rows of the probabilities of the values of the binomial model, see
+	 * getValuesProbabilitiesAtGivenTimeIndex, are computed in parallel. This can be useful for a big number of times.
+	 * It must be called before the probabilities are computed for the first time.
+	 * 
+	 * @param isGeneratingProbabilitiesInParallel true if the probabilities are computed in parallel
+	 */
+	public void setParallelProbabilityGeneration(boolean isGeneratingProbabilitiesInParallel) {
+		this.isGeneratingProbabilitiesInParallel = isGeneratingProbabilitiesInParallel;
+	}
+
 	/**
 	 * It returns the array whose two elements are the probability of an up movement and the probability
 	 * of a down movement, respectively.
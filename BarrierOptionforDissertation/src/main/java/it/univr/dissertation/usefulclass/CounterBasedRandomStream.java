@@ -0,0 +1,109 @@
+package it.univr.dissertation.usefulclass;
+
+/**
+ * This class represents a counter-based stream of random numbers. Differently from java.util.Random, there is
+ * no state which gets updated every time we draw a number: the number is a (SplitMix64) hash of the master seed
+ * and of a key (pathIndex, timeIndex, counter). In this way:
+ * - the same key always gives the same number, whatever the order in which the numbers are drawn,
+ * - the object is immutable, so it can be shared by many threads without any synchronization.
+ * So, for example, the refinements of different paths can be computed in parallel and still give bit-identical
+ * results for a given master seed.
+ */
+public class CounterBasedRandomStream {
+
+	//the golden ratio constant used by SplitMix64 to go from one key to the next one
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private final long masterSeed;
+
+	/**
+	 * It constructs a counter-based stream of random numbers.
+	 *
+	 * @param masterSeed the seed which determines all the numbers of the stream
+	 */
+	public CounterBasedRandomStream(long masterSeed) {
+		this.masterSeed = masterSeed;
+	}
+
+	/**
+	 * It returns a new stream, independent from this one, identified by the given index. Splitting the same
+	 * stream with the same index always gives the same new stream.
+	 *
+	 * @param streamIndex the index of the new stream
+	 * @return a new stream identified by streamIndex
+	 */
+	public CounterBasedRandomStream split(long streamIndex) {
+		return new CounterBasedRandomStream(mix(masterSeed + GOLDEN_GAMMA * (streamIndex + 1)) ^ GOLDEN_GAMMA);
+	}
+
+	/**
+	 * It returns 64 random bits identified by the given key.
+	 *
+	 * @param pathIndex the first element of the key, typically the path
+	 * @param timeIndex the second element of the key, typically the time index
+	 * @param counter the third element of the key, when more numbers are needed for the same path and time
+	 * @return 64 random bits as a long
+	 */
+	public long getLong(long pathIndex, long timeIndex, long counter) {
+		long hash = mix(masterSeed + GOLDEN_GAMMA * (pathIndex + 1));
+		hash = mix(hash + GOLDEN_GAMMA * (timeIndex + 1));
+		return mix(hash + GOLDEN_GAMMA * (counter + 1));
+	}
+
+	/**
+	 * It returns a number uniformly distributed in (0,1) identified by the given key.
+	 *
+	 * @param pathIndex the first element of the key, typically the path
+	 * @param timeIndex the second element of the key, typically the time index
+	 * @param counter the third element of the key
+	 * @return a number uniformly distributed in (0,1): note that 0 is excluded
+	 */
+	public double getUniform(long pathIndex, long timeIndex, long counter) {
+		//53 random bits, shifted by one half so that we never get 0
+		return ((getLong(pathIndex, timeIndex, counter) >>> 11) + 0.5) * 0x1.0p-53;
+	}
+
+	/**
+	 * It returns a standard normal number identified by the given key, computed with the Box-Muller method from
+	 * the two uniforms with counters 2*counter and 2*counter+1.
+	 *
+	 * @param pathIndex the first element of the key, typically the path
+	 * @param timeIndex the second element of the key, typically the time index
+	 * @param counter the third element of the key, for example the index of a sub-interval
+	 * @return a standard normal number
+	 */
+	public double getNormal(long pathIndex, long timeIndex, long counter) {
+		double firstUniform = getUniform(pathIndex, timeIndex, 2 * counter);
+		double secondUniform = getUniform(pathIndex, timeIndex, 2 * counter + 1);
+		return Math.sqrt(-2.0 * Math.log(firstUniform)) * Math.cos(2.0 * Math.PI * secondUniform);
+	}
+
+	/**
+	 * It returns a seed, identified by the given path and time index, which can be given to a random number
+	 * generator of the Finmath library, for example to BrownianMotionFromMersenneRandomNumbers.
+	 *
+	 * @param pathIndex the path
+	 * @param timeIndex the time index
+	 * @return an int seed
+	 */
+	public int getSeed(long pathIndex, long timeIndex) {
+		return (int) (getLong(pathIndex, timeIndex, -1) >>> 32);
+	}
+
+	/**
+	 * It returns the master seed of the stream
+	 * @return the master seed of the stream
+	 */
+	public long getMasterSeed() {
+		return masterSeed;
+	}
+
+	/*
+	 * The finalizer of SplitMix64: a bijection of the longs which mixes all the bits.
+	 */
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+}
@@ -1,5 +1,6 @@
 package it.univr.dissertation.usefulclass;
 
+import java.util.Arrays;
 import java.util.function.DoubleUnaryOperator;
 
 import org.apache.commons.math3.linear.DecompositionSolver;
@@ -28,6 +29,32 @@ public class FDMThetaMethodForKnockOutOption {
 	private final double timeHorizon;
 	private final double lowerBarrier;
 	private final double upperBarrier;
+	//see setTridiagonalSolver
+	private boolean isUsingTridiagonalSolver = false;
+	//see setTimeHomogeneousCoefficients
+	private boolean isTimeHomogeneous = false;
+	//see setNonUniformGrid and setGridConcentrationPoints
+	private boolean isUsingNonUniformGrid = false;
+	private double[] concentrationPoints = new double[0];
+	//the width of the regions where the nodes of the non-uniform grid are closer, relative to the grid
+	private static final double GRID_CONCENTRATION_WIDTH = 0.05;
+	//the number of times the operator has been factorized in the last call of getValue
+	private int numberOfFactorizations;
+	//see setRannacherSteps
+	private int numberOfRannacherSteps = 0;
+	//see setAdaptiveTimeStepping and setTimeStepTolerance
+	private boolean isUsingAdaptiveTimeStepping = false;
+	private double timeStepTolerance = 1E-4;
+	//the bounds of the factor by which the adaptive time step can change, and the safety factor of the controller
+	private static final double MINIMUM_STEP_FACTOR = 0.2;
+	private static final double MAXIMUM_STEP_FACTOR = 4.0;
+	private static final double TIME_STEP_SAFETY_FACTOR = 0.9;
+	//the smallest adaptive time step, relative to the time horizon: such a step is always accepted
+	private static final double MINIMUM_RELATIVE_TIME_STEP = 1E-8;
+	//the number of time steps done in the last call of getValue
+	private int numberOfTimeSteps;
+	//see setMonitoringTimes: if empty, the barriers are continuously monitored
+	private double[] monitoringTimes = new double[0];
 
 
 	public FDMThetaMethodForKnockOutOption(FiniteDifference1DModel model, FiniteDifference1DBoundary boundaryCondition, double timeHorizon,  double theta,
@@ -41,18 +68,62 @@ public class FDMThetaMethodForKnockOutOption {
 	}
 
 	public double[][] getValue(double evaluationTime, double time, DoubleUnaryOperator valueAtMaturity) {
+		return getValues(evaluationTime, time, new DoubleUnaryOperator[] {valueAtMaturity});
+	}
+
+	/**
+	 * It returns the values of many products with the same barriers and maturity, given by their payoffs, computed
+	 * on the same grid with a single backward sweep: at every time step the operator is built and factorized once
+	 * and then applied to all the payoffs, as a system with many right hand sides.
+	 *
+	 * @param evaluationTime the evaluation time: only 0 is supported
+	 * @param time the maturity: it must be the time horizon of the solver
+	 * @param valuesAtMaturity the payoffs of the products
+	 * @return an array whose first element is the array of the stock prices of the grid, and whose element k+1 is
+	 * the array of the values of the k-th product at these stock prices
+	 */
+	public double[][] getValues(double evaluationTime, double time, DoubleUnaryOperator[] valuesAtMaturity) {
+		final FiniteDifference1DBoundary[] boundaryConditions = new FiniteDifference1DBoundary[valuesAtMaturity.length];
+		Arrays.fill(boundaryConditions, boundaryCondition);
+		return getValues(evaluationTime, time, valuesAtMaturity, boundaryConditions);
+	}
+
+	/**
+	 * It returns the values of many products as getValues above, but every product has its own boundary conditions
+	 * instead of the ones given in the constructor. This is needed with discrete monitoring, where the values at the
+	 * ends of the grid depend on the payoff, see setMonitoringTimes.
+	 *
+	 * @param evaluationTime the evaluation time: only 0 is supported
+	 * @param time the maturity: it must be the time horizon of the solver
+	 * @param valuesAtMaturity the payoffs of the products
+	 * @param boundaryConditions the boundary conditions of the products, in the same order of the payoffs
+	 * @return an array whose first element is the array of the stock prices of the grid, and whose element k+1 is
+	 * the array of the values of the k-th product at these stock prices
+	 */
+	public double[][] getValues(double evaluationTime, double time, DoubleUnaryOperator[] valuesAtMaturity,
+			FiniteDifference1DBoundary[] boundaryConditions) {
+		if (boundaryConditions.length != valuesAtMaturity.length) {
+			throw new IllegalArgumentException("Error: every product must have its boundary conditions!");
+		}
 		if(evaluationTime != 0) {
 			throw new IllegalArgumentException("Evaluation time != 0 not supported.");
 		}
 		if(time != timeHorizon) {
 			throw new IllegalArgumentException("Given time != timeHorizon not supported.");
 		}
+		final int numberOfProducts = valuesAtMaturity.length;
 
-		// Grid Generation
+		numberOfFactorizations = 0;
+		numberOfTimeSteps = 0;
+
+		// Grid Generation: with discrete monitoring the grid goes beyond the barriers, and it cannot be negative
+		final boolean isDiscretelyMonitored = monitoringTimes.length > 0;
 		final double maximumStockPriceOnGrid = Math.min(model.getForwardValue(timeHorizon)
-				+ model.getNumStandardDeviations() * Math.sqrt(model.varianceOfStockPrice(timeHorizon)),upperBarrier);
+				+ model.getNumStandardDeviations() * Math.sqrt(model.varianceOfStockPrice(timeHorizon)),
+				isDiscretelyMonitored ? Double.POSITIVE_INFINITY : upperBarrier);
 		final double minimumStockPriceOnGrid = Math.max(model.getForwardValue(timeHorizon)
-				- model.getNumStandardDeviations() * Math.sqrt(model.varianceOfStockPrice(timeHorizon)), lowerBarrier);
+				- model.getNumStandardDeviations() * Math.sqrt(model.varianceOfStockPrice(timeHorizon)),
+				isDiscretelyMonitored ? 0.0 : lowerBarrier);
 		
 		final double deltaStock = (maximumStockPriceOnGrid - minimumStockPriceOnGrid) / model.getNumSpacesteps();
 		final double deltaTau = timeHorizon / model.getNumTimesteps();
@@ -71,6 +142,39 @@ public class FDMThetaMethodForKnockOutOption {
 			tau[i] = i * deltaTau;
 		}
 
+		if (isUsingNonUniformGrid) {
+			/*
+			 * The nodes are closer around the given concentration points and the ends of the grid which are
+			 * barriers: note that the grid is truncated at the barriers, so the barriers are always nodes
+			 */
+			final double[] pointsOfTheGrid = Arrays.copyOf(concentrationPoints, concentrationPoints.length + 2);
+			int numberOfPoints = 0;
+			for (final double concentrationPoint : concentrationPoints) {
+				if (concentrationPoint > minimumStockPriceOnGrid && concentrationPoint < maximumStockPriceOnGrid) {
+					pointsOfTheGrid[numberOfPoints++] = concentrationPoint;
+				}
+			}
+			// With discrete monitoring the barriers can be inside the grid, where the knock out makes a jump
+			if (minimumStockPriceOnGrid == lowerBarrier
+					|| isDiscretelyMonitored && lowerBarrier > minimumStockPriceOnGrid && lowerBarrier < maximumStockPriceOnGrid) {
+				pointsOfTheGrid[numberOfPoints++] = lowerBarrier;
+			}
+			if (maximumStockPriceOnGrid == upperBarrier
+					|| isDiscretelyMonitored && upperBarrier > minimumStockPriceOnGrid && upperBarrier < maximumStockPriceOnGrid) {
+				pointsOfTheGrid[numberOfPoints++] = upperBarrier;
+			}
+			final double[] nonUniformStock = getNonUniformGrid(minimumStockPriceOnGrid, maximumStockPriceOnGrid,
+					model.getNumSpacesteps(), Arrays.copyOf(pointsOfTheGrid, numberOfPoints));
+			return getValuesOnNonUniformGrid(nonUniformStock, minimumStockPriceOnGrid, maximumStockPriceOnGrid,
+					deltaTau, valuesAtMaturity, boundaryConditions);
+		}
+
+		// The Rannacher start, the adaptive time steps and the discrete monitoring are only implemented with the Thomas algorithm
+		if (isUsingTridiagonalSolver || numberOfRannacherSteps > 0 || isUsingAdaptiveTimeStepping || isDiscretelyMonitored) {
+			return getValuesWithTridiagonalSolver(stock, minimumStockPriceOnGrid, maximumStockPriceOnGrid, deltaStock,
+					deltaTau, valuesAtMaturity, boundaryConditions);
+		}
+
 		// Create constant matrices
 		final RealMatrix eye = MatrixUtils.createRealIdentityMatrix(spaceLength);
 		final RealMatrix D1 = MatrixUtils.createRealMatrix(spaceLength, spaceLength);
@@ -104,32 +208,51 @@ public class FDMThetaMethodForKnockOutOption {
 		final RealMatrix G2 = F2.scalarMultiply(-1);
 		final RealMatrix G3 = F3.scalarMultiply(-1);
 
-		// Initialize boundary and solution vectors
-		final RealMatrix b = MatrixUtils.createRealMatrix(spaceLength, 1);
-		final RealMatrix b2 = MatrixUtils.createRealMatrix(spaceLength, 1);
-		RealMatrix U = MatrixUtils.createRealMatrix(spaceLength, 1);
+		// Initialize boundary and solution vectors: one column for every product
+		final RealMatrix b = MatrixUtils.createRealMatrix(spaceLength, numberOfProducts);
+		final RealMatrix b2 = MatrixUtils.createRealMatrix(spaceLength, numberOfProducts);
+		RealMatrix U = MatrixUtils.createRealMatrix(spaceLength, numberOfProducts);
 		for (int i = 0; i < spaceLength; i++) {
-			b.setEntry(i, 0, 0);
-			b2.setEntry(i, 0, 0);
-			U.setEntry(i, 0, valueAtMaturity.applyAsDouble(stock[i]));
+			for (int k = 0; k < numberOfProducts; k++) {
+				b.setEntry(i, k, 0);
+				b2.setEntry(i, k, 0);
+				U.setEntry(i, k, valuesAtMaturity[k].applyAsDouble(stock[i]));
+			}
 		}
 
 		// Theta finite difference method
+		/*
+		 * The operators of a step only depend on the squared local volatilities at the two times of the step: if
+		 * they are the same as in the previous step, we reuse the operator on the right hand side and the LU
+		 * decomposition of H
+		 */
+		double[] previousSigma = null;
+		double[] previousSigma2 = null;
+		RealMatrix rightHandSideOperator = null;
+		DecompositionSolver solver = null;
 		for (int m = 0; m < model.getNumTimesteps(); m++) {
-			final double[] sigma = new double[spaceLength];
-			final double[] sigma2 = new double[spaceLength];
-			for (int i = 0; i < spaceLength; i++) {
-				sigma[i] = Math.pow(model.getLocalVolatility(minimumStockPriceOnGrid + (i + 1) * deltaStock,
-						timeHorizon - m * deltaTau), 2);
-				sigma2[i] = Math.pow(model.getLocalVolatility(minimumStockPriceOnGrid + (i + 1) * deltaStock,
-						timeHorizon - (m + 1) * deltaTau), 2);
-			}
-			final RealMatrix Sigma = MatrixUtils.createRealDiagonalMatrix(sigma);
-			final RealMatrix Sigma2 = MatrixUtils.createRealDiagonalMatrix(sigma2);
-			final RealMatrix F = F1.add(F2).add(Sigma.multiply(F3));
-			final RealMatrix G = G1.add(G2).add(Sigma2.multiply(G3));
-			final RealMatrix H = G.scalarMultiply(theta).add(eye.scalarMultiply(1 - theta));
-			final DecompositionSolver solver = new LUDecomposition(H).getSolver();
+			if (solver == null || !isTimeHomogeneous) {
+				final double[] sigma = new double[spaceLength];
+				final double[] sigma2 = new double[spaceLength];
+				for (int i = 0; i < spaceLength; i++) {
+					sigma[i] = Math.pow(model.getLocalVolatility(minimumStockPriceOnGrid + (i + 1) * deltaStock,
+							timeHorizon - m * deltaTau), 2);
+					sigma2[i] = Math.pow(model.getLocalVolatility(minimumStockPriceOnGrid + (i + 1) * deltaStock,
+							timeHorizon - (m + 1) * deltaTau), 2);
+				}
+				if (solver == null || !Arrays.equals(sigma, previousSigma) || !Arrays.equals(sigma2, previousSigma2)) {
+					final RealMatrix Sigma = MatrixUtils.createRealDiagonalMatrix(sigma);
+					final RealMatrix Sigma2 = MatrixUtils.createRealDiagonalMatrix(sigma2);
+					final RealMatrix F = F1.add(F2).add(Sigma.multiply(F3));
+					final RealMatrix G = G1.add(G2).add(Sigma2.multiply(G3));
+					final RealMatrix H = G.scalarMultiply(theta).add(eye.scalarMultiply(1 - theta));
+					rightHandSideOperator = F.scalarMultiply(1 - theta).add(eye.scalarMultiply(theta));
+					solver = new LUDecomposition(H).getSolver();
+					numberOfFactorizations++;
+					previousSigma = sigma;
+					previousSigma2 = sigma2;
+				}
+			}
 
 			final double Sl = (minimumStockPriceOnGrid / deltaStock + 1);
 			final double Su = (maximumStockPriceOnGrid / deltaStock - 1);
@@ -142,34 +265,649 @@ public class FDMThetaMethodForKnockOutOption {
 			final double vu2 = Math.pow(model.getLocalVolatility(maximumStockPriceOnGrid - deltaStock,
 					timeHorizon - (m + 1) * deltaTau), 2);
 
-			b.setEntry(0, 0,
-					0.5 * deltaTau * Sl * (vl * Sl - model.getRiskFreeRate()) * timeReversedLowerBoundary(minimumStockPriceOnGrid, tau[m]));
-			b.setEntry(spaceLength - 1, 0,
-					0.5 * deltaTau * Su * (vu * Su + model.getRiskFreeRate()) * timeReversedUpperBoundary(maximumStockPriceOnGrid, tau[m]));
-			b2.setEntry(0, 0,
-					0.5 * deltaTau * Sl * (vl2 * Sl - model.getRiskFreeRate()) * timeReversedLowerBoundary(minimumStockPriceOnGrid, tau[m + 1]));
-			b2.setEntry(spaceLength - 1, 0,
-					0.5 * deltaTau * Su * (vu2 * Su + model.getRiskFreeRate()) * timeReversedUpperBoundary(maximumStockPriceOnGrid, tau[m + 1]));
-			final RealMatrix U1 = (F.scalarMultiply(1 - theta).add(eye.scalarMultiply(theta))).multiply(U);
+			// Every product has its own boundary conditions
+			for (int k = 0; k < numberOfProducts; k++) {
+				b.setEntry(0, k, 0.5 * deltaTau * Sl * (vl * Sl - model.getRiskFreeRate())
+						* timeReversedLowerBoundary(boundaryConditions[k], minimumStockPriceOnGrid, tau[m]));
+				b.setEntry(spaceLength - 1, k, 0.5 * deltaTau * Su * (vu * Su + model.getRiskFreeRate())
+						* timeReversedUpperBoundary(boundaryConditions[k], maximumStockPriceOnGrid, tau[m]));
+				b2.setEntry(0, k, 0.5 * deltaTau * Sl * (vl2 * Sl - model.getRiskFreeRate())
+						* timeReversedLowerBoundary(boundaryConditions[k], minimumStockPriceOnGrid, tau[m + 1]));
+				b2.setEntry(spaceLength - 1, k, 0.5 * deltaTau * Su * (vu2 * Su + model.getRiskFreeRate())
+						* timeReversedUpperBoundary(boundaryConditions[k], maximumStockPriceOnGrid, tau[m + 1]));
+			}
+			final RealMatrix U1 = rightHandSideOperator.multiply(U);
 			final RealMatrix U2 = b.scalarMultiply(1 - theta).add(b2.scalarMultiply(theta));
 			U = solver.solve(U1.add(U2));
+			numberOfTimeSteps++;
+		}
+		final double[][] stockAndOptionPrice = new double[numberOfProducts + 1][];
+		stockAndOptionPrice[0] = stock;
+		for (int k = 0; k < numberOfProducts; k++) {
+			stockAndOptionPrice[k + 1] = U.getColumn(k);
+		}
+		return stockAndOptionPrice;
+	}
+
+	/**
+	 * If set to true, every step of the theta method is solved with the Thomas algorithm, storing only the three
+	 * diagonals of the matrices as primitive arrays: so every step costs O(N) operations, with N the number of
+	 * space steps, and no matrix is allocated. By default, the dense matrices and their LU decomposition are used.
+	 * The prices are the same up to round-off.
+	 *
+	 * @param isUsingTridiagonalSolver true if the tridiagonal solver is used
+	 */
+	public void setTridiagonalSolver(boolean isUsingTridiagonalSolver) {
+		this.isUsingTridiagonalSolver = isUsingTridiagonalSolver;
+	}
+
+	/**
+	 * If set to true, the solver uses a non-uniform grid: its ends are the same as the ones of the uniform grid
+	 * (so they are the barriers when these are inside the forward +- numStandardDeviations bounds), but the nodes
+	 * are closer around the barriers and the concentration points given by setGridConcentrationPoints, for example
+	 * the strike. The operator is discretized with the non-uniform three point formulas and the steps are solved
+	 * with the Thomas algorithm, also if setTridiagonalSolver has not been called. In this way we can get the same
+	 * accuracy with less space steps.
+	 *
+	 * @param isUsingNonUniformGrid true if the non-uniform grid is used
+	 */
+	public void setNonUniformGrid(boolean isUsingNonUniformGrid) {
+		this.isUsingNonUniformGrid = isUsingNonUniformGrid;
+	}
+
+	/**
+	 * It sets the points around which the nodes of the non-uniform grid are closer, in addition to the barriers.
+	 * The points outside the grid are ignored.
+	 *
+	 * @param concentrationPoints the points, for example the strike of the option
+	 */
+	public void setGridConcentrationPoints(double... concentrationPoints) {
+		this.concentrationPoints = concentrationPoints.clone();
+	}
+
+	/**
+	 * If set to true, the local volatility of the model is supposed not to depend on time: it is then evaluated
+	 * only at the first step, and the operators are built and factorized only once. By default, the local volatility
+	 * is evaluated at every step, and the operators are built and factorized again only if it has changed from the
+	 * previous step: so for a time homogeneous model this is done only once anyway, but we pay the evaluations.
+	 *
+	 * @param isTimeHomogeneous true if the local volatility does not depend on time
+	 */
+	public void setTimeHomogeneousCoefficients(boolean isTimeHomogeneous) {
+		this.isTimeHomogeneous = isTimeHomogeneous;
+	}
+
+	/**
+	 * It sets the number of Rannacher steps: the first numberOfRannacherSteps time steps are replaced by two fully
+	 * implicit (theta = 1) steps of half length each, and then the method goes on with the given theta. With
+	 * Crank-Nicolson, the implicit steps damp the oscillations coming from the discontinuities of the payoff at the
+	 * strike and at the barriers, so that we do not need to increase the number of time steps. Two steps are usually
+	 * enough. By default there are none. If it is positive, the steps are solved with the Thomas algorithm, also if
+	 * setTridiagonalSolver has not been called.
+	 *
+	 * @param numberOfRannacherSteps the number of time steps replaced by two implicit half steps
+	 */
+	public void setRannacherSteps(int numberOfRannacherSteps) {
+		if (numberOfRannacherSteps < 0) {
+			throw new IllegalArgumentException("Error: the number of Rannacher steps cannot be negative!");
+		}
+		this.numberOfRannacherSteps = numberOfRannacherSteps;
+	}
+
+	/**
+	 * If set to true, the time steps after the Rannacher ones are chosen by step doubling: every step is done once
+	 * with length dt and once as two steps of length dt/2, the difference of the two results estimates the local
+	 * error, and dt is made smaller or larger so that this error stays below the tolerance given by
+	 * setTimeStepTolerance. In this way the steps are short only where the solution changes fast, that is close
+	 * to maturity, and model.getNumTimesteps() only gives the first step. The number of steps done can be read
+	 * with getNumberOfTimeSteps. The steps are solved with the Thomas algorithm, also if setTridiagonalSolver has
+	 * not been called.
+	 *
+	 * @param isUsingAdaptiveTimeStepping true if the time steps are adaptive
+	 */
+	public void setAdaptiveTimeStepping(boolean isUsingAdaptiveTimeStepping) {
+		this.isUsingAdaptiveTimeStepping = isUsingAdaptiveTimeStepping;
+	}
+
+	/**
+	 * It sets the tolerance for the local error of every adaptive time step, in units of the price: by default 1E-4.
+	 *
+	 * @param timeStepTolerance the tolerance for the local error of a time step
+	 */
+	public void setTimeStepTolerance(double timeStepTolerance) {
+		if (!(timeStepTolerance > 0)) {
+			throw new IllegalArgumentException("Error: the tolerance must be positive!");
+		}
+		this.timeStepTolerance = timeStepTolerance;
+	}
+
+	/**
+	 * It sets the times at which the barriers are monitored, for example every day or every week until maturity.
+	 * By default the barriers are monitored continuously: the grid ends at the barriers, where the value is given
+	 * by the boundary conditions. If monitoring times are given, instead, the grid ends at forward +-
+	 * numStandardDeviations, also beyond the barriers, and the solution is set to 0 at the nodes outside the
+	 * barriers only at the monitoring times. The time steps are chosen so that the monitoring times are times of
+	 * the scheme, and the Rannacher steps (see setRannacherSteps) are repeated after every monitoring time. The
+	 * steps are solved with the Thomas algorithm, also if setTridiagonalSolver has not been called. Note that the
+	 * boundary conditions are then used at the ends of the grid, which are usually far beyond the barriers: they
+	 * must give the value of the product there, see for example BarrierOptionFiniteDifferences.getValueAtLowerBoundary.
+	 *
+	 * @param monitoringTimes the monitoring times, between 0 and the time horizon
+	 */
+	public void setMonitoringTimes(double... monitoringTimes) {
+		for (final double monitoringTime : monitoringTimes) {
+			if (monitoringTime < 0 || monitoringTime > timeHorizon) {
+				throw new IllegalArgumentException("Error: the monitoring times must be between 0 and the time horizon!");
+			}
+		}
+		this.monitoringTimes = monitoringTimes.clone();
+	}
+
+	/**
+	 * It returns the number of time steps of the solution in the last call of getValue: every Rannacher step counts
+	 * as two, and for the adaptive time steps only the accepted ones are counted
+	 * @return the number of time steps in the last call of getValue
+	 */
+	public int getNumberOfTimeSteps() {
+		return numberOfTimeSteps;
+	}
+
+	/**
+	 * It returns the number of times the operator of the theta method has been factorized in the last call of getValue
+	 * @return the number of factorizations in the last call of getValue
+	 */
+	public int getNumberOfFactorizations() {
+		return numberOfFactorizations;
+	}
+
+	/*
+	 * The same theta method as in getValue, where the matrices F, G and H are tridiagonal. Writing
+	 * x_i = minimumStockPriceOnGrid/deltaStock + i + 1 and s_i for the squared local volatility, the rows of
+	 * F = F1 + F2 + Sigma F3 are
+	 * (0.5 dt s_i x_i^2 - 0.5 r dt x_i, 1 - r dt - dt s_i x_i^2, 0.5 dt s_i x_i^2 + 0.5 r dt x_i),
+	 * and G = G1 + G2 + Sigma2 G3 is 2I - F, with s_i at the next time. So F = I + dt L and G = I - dt L, where
+	 * L = s D + R is the sum of the diffusion operator D, which we multiply by the squared local volatility, and of
+	 * the operator R of the risk free rate.
+	 */
+	private double[][] getValuesWithTridiagonalSolver(double[] stock, double minimumStockPriceOnGrid,
+			double maximumStockPriceOnGrid, double deltaStock, double deltaTau, DoubleUnaryOperator[] valuesAtMaturity,
+			FiniteDifference1DBoundary[] boundaryConditions) {
+		final int spaceLength = stock.length;
+		final double riskFreeRate = model.getRiskFreeRate();
+
+		final double[][] diffusionOperator = new double[3][spaceLength];
+		final double[][] rateOperator = new double[3][spaceLength];
+		for (int i = 0; i < spaceLength; i++) {
+			final double x = minimumStockPriceOnGrid / deltaStock + (i + 1);
+			final double xSquared = Math.pow(minimumStockPriceOnGrid / deltaStock + (i + 1), 2);
+			diffusionOperator[0][i] = 0.5 * xSquared;
+			diffusionOperator[1][i] = -xSquared;
+			diffusionOperator[2][i] = 0.5 * xSquared;
+			rateOperator[0][i] = -0.5 * riskFreeRate * x;
+			rateOperator[1][i] = -riskFreeRate;
+			rateOperator[2][i] = 0.5 * riskFreeRate * x;
+		}
+		return getValuesWithTridiagonalOperators(stock, minimumStockPriceOnGrid, maximumStockPriceOnGrid, deltaTau,
+				diffusionOperator, rateOperator, valuesAtMaturity, boundaryConditions);
+	}
+
+	/*
+	 * The theta method on the non-uniform grid with nodes minimumStockPriceOnGrid = S_{-1} < S_0 < ... < S_{n-1} <
+	 * S_n = maximumStockPriceOnGrid. With h_i = S_i - S_{i-1} and k_i = S_{i+1} - S_i, the three point formulas are
+	 * V'(S_i) = (-k_i/(h_i(h_i+k_i)), (k_i-h_i)/(h_i k_i), h_i/(k_i(h_i+k_i))) (V_{i-1}, V_i, V_{i+1}),
+	 * V''(S_i) = (2/(h_i(h_i+k_i)), -2/(h_i k_i), 2/(k_i(h_i+k_i))) (V_{i-1}, V_i, V_{i+1}),
+	 * and L V = 0.5 s S^2 V'' + r S V' - r V. On a uniform grid they give the same operator as above.
+	 */
+	private double[][] getValuesOnNonUniformGrid(double[] stock, double minimumStockPriceOnGrid,
+			double maximumStockPriceOnGrid, double deltaTau, DoubleUnaryOperator[] valuesAtMaturity,
+			FiniteDifference1DBoundary[] boundaryConditions) {
+		final int spaceLength = stock.length;
+		final double riskFreeRate = model.getRiskFreeRate();
+
+		final double[][] diffusionOperator = new double[3][spaceLength];
+		final double[][] rateOperator = new double[3][spaceLength];
+		for (int i = 0; i < spaceLength; i++) {
+			final double previousNode = i == 0 ? minimumStockPriceOnGrid : stock[i - 1];
+			final double nextNode = i == spaceLength - 1 ? maximumStockPriceOnGrid : stock[i + 1];
+			final double h = stock[i] - previousNode;
+			final double k = nextNode - stock[i];
+			final double halfSquaredStock = 0.5 * stock[i] * stock[i];
+			diffusionOperator[0][i] = halfSquaredStock * 2 / (h * (h + k));
+			diffusionOperator[1][i] = -halfSquaredStock * 2 / (h * k);
+			diffusionOperator[2][i] = halfSquaredStock * 2 / (k * (h + k));
+			rateOperator[0][i] = riskFreeRate * stock[i] * (-k / (h * (h + k)));
+			rateOperator[1][i] = riskFreeRate * stock[i] * ((k - h) / (h * k)) - riskFreeRate;
+			rateOperator[2][i] = riskFreeRate * stock[i] * (h / (k * (h + k)));
+		}
+		return getValuesWithTridiagonalOperators(stock, minimumStockPriceOnGrid, maximumStockPriceOnGrid, deltaTau,
+				diffusionOperator, rateOperator, valuesAtMaturity, boundaryConditions);
+	}
+
+	/*
+	 * At every step we solve
+	 * H U_{m+1} = ((1 - theta) F + theta I) U_m + (1 - theta) b + theta b2, with H = theta G + (1 - theta) I,
+	 * F = I + dt L_m and G = I - dt L_{m+1}. The operators are given by their lower, main and upper diagonals:
+	 * the first and the last row also multiply the values at the boundaries, which give b and b2.
+	 * The time to maturity is split in segments by the monitoring times, if any, and every segment in steps of length
+	 * as close as possible to dt. At the end of a segment we apply the knock out condition, and in every segment the
+	 * first numberOfRannacherSteps steps are replaced by two fully implicit steps of half length each, since the
+	 * knock out makes the values discontinuous again. The other steps are chosen by getValuesWithAdaptiveTimeSteps
+	 * if adaptive time stepping is used.
+	 */
+	private double[][] getValuesWithTridiagonalOperators(double[] stock, double minimumStockPriceOnGrid,
+			double maximumStockPriceOnGrid, double deltaTau, double[][] diffusionOperator, double[][] rateOperator,
+			DoubleUnaryOperator[] valuesAtMaturity, FiniteDifference1DBoundary[] boundaryConditions) {
+		final int spaceLength = stock.length;
+
+		// One row for every product
+		final int numberOfProducts = valuesAtMaturity.length;
+		double[][] U = new double[numberOfProducts][spaceLength];
+		double[][] newU = new double[numberOfProducts][spaceLength];
+		for (int k = 0; k < numberOfProducts; k++) {
+			for (int i = 0; i < spaceLength; i++) {
+				U[k][i] = valuesAtMaturity[k].applyAsDouble(stock[i]);
+			}
+		}
+
+		final TridiagonalThetaStep step = new TridiagonalThetaStep(stock, minimumStockPriceOnGrid, maximumStockPriceOnGrid,
+				diffusionOperator, rateOperator, boundaryConditions);
+		final TridiagonalThetaStep fullStep = isUsingAdaptiveTimeStepping ? new TridiagonalThetaStep(stock,
+				minimumStockPriceOnGrid, maximumStockPriceOnGrid, diffusionOperator, rateOperator, boundaryConditions) : null;
+
+		// The ends of the segments in time to maturity tau = T - t: a monitoring time t gives the end tau = T - t
+		final double[] endsOfSegments = getEndsOfTimeSegments();
+		if (isMonitoredAtTimeToMaturity(0.0)) {
+			applyKnockOutCondition(stock, U);
+		}
+
+		double startOfSegment = 0.0;
+		for (final double endOfSegment : endsOfSegments) {
+			final int numberOfStepsInSegment = endsOfSegments.length == 1 ? model.getNumTimesteps()
+					: Math.max(1, (int) Math.ceil((endOfSegment - startOfSegment) / deltaTau - 1E-9));
+			final double deltaTauInSegment = endsOfSegments.length == 1 ? deltaTau
+					: (endOfSegment - startOfSegment) / numberOfStepsInSegment;
+
+			// Rannacher start: the discontinuities of the payoff are smoothed by the implicit steps
+			final int numberOfImplicitSteps = Math.min(numberOfRannacherSteps, numberOfStepsInSegment);
+			final double halfDeltaTau = 0.5 * deltaTauInSegment;
+			for (int m = 0; m < 2 * numberOfImplicitSteps; m++) {
+				step.advance(U, newU, startOfSegment + m * halfDeltaTau, startOfSegment + (m + 1) * halfDeltaTau,
+						halfDeltaTau, 1.0);
+				final double[][] swap = U;
+				U = newU;
+				newU = swap;
+				numberOfTimeSteps++;
+			}
+
+			if (isUsingAdaptiveTimeStepping) {
+				U = getValuesWithAdaptiveTimeSteps(U, step, fullStep,
+						startOfSegment + numberOfImplicitSteps * deltaTauInSegment, endOfSegment, deltaTauInSegment);
+			}
+			else {
+				for (int m = numberOfImplicitSteps; m < numberOfStepsInSegment; m++) {
+					final double tauOfNextStep = m + 1 == numberOfStepsInSegment && endsOfSegments.length > 1
+							? endOfSegment : startOfSegment + (m + 1) * deltaTauInSegment;
+					step.advance(U, newU, startOfSegment + m * deltaTauInSegment, tauOfNextStep, deltaTauInSegment, theta);
+					final double[][] swap = U;
+					U = newU;
+					newU = swap;
+					numberOfTimeSteps++;
+				}
+			}
+
+			if (isMonitoredAtTimeToMaturity(endOfSegment)) {
+				applyKnockOutCondition(stock, U);
+			}
+			startOfSegment = endOfSegment;
 		}
-		final double[] optionPrice = U.getColumn(0);
-		final double[][] stockAndOptionPrice = new double[2][spaceLength];
+
+		final double[][] stockAndOptionPrice = new double[numberOfProducts + 1][];
 		stockAndOptionPrice[0] = stock;
-		stockAndOptionPrice[1] = optionPrice;
+		for (int k = 0; k < numberOfProducts; k++) {
+			stockAndOptionPrice[k + 1] = U[k];
+		}
 		return stockAndOptionPrice;
 	}
 
+	/*
+	 * It goes from firstTau to lastTau with time steps chosen by step doubling: from tau, with the step dt, we
+	 * compute U_big with one step of length dt and U_small with two steps of length dt/2. The local error of U_small
+	 * is estimated by e = max |U_big - U_small|: if e <= timeStepTolerance we accept U_small, otherwise we try
+	 * again from tau. In both cases the next dt is dt (timeStepTolerance / e)^(1/(p+1)), times a safety factor,
+	 * where p = 2 is the order of Crank-Nicolson and p = 1 the one of the other theta methods.
+	 * The steps of length dt and dt/2 have their own operators, so that they are factorized again only if dt changes.
+	 */
+	private double[][] getValuesWithAdaptiveTimeSteps(double[][] values, TridiagonalThetaStep halfStep,
+			TridiagonalThetaStep fullStep, double firstTau, double lastTau, double firstDeltaTau) {
+		final int numberOfProducts = values.length;
+		final int spaceLength = values[0].length;
+		double[][] U = values;
+		double[][] bigStepU = new double[numberOfProducts][spaceLength];
+		double[][] halfStepU = new double[numberOfProducts][spaceLength];
+		double[][] smallStepsU = new double[numberOfProducts][spaceLength];
+
+		final double orderOfTheMethod = theta == 0.5 ? 2 : 1;
+		final double minimumDeltaTau = MINIMUM_RELATIVE_TIME_STEP * timeHorizon;
+
+		double currentTau = firstTau;
+		double deltaTau = firstDeltaTau;
+		while (currentTau < lastTau) {
+			final boolean isLastStep = deltaTau >= lastTau - currentTau;
+			final double nextTau = isLastStep ? lastTau : currentTau + deltaTau;
+			deltaTau = nextTau - currentTau;
+			final double middleTau = currentTau + 0.5 * deltaTau;
+
+			fullStep.advance(U, bigStepU, currentTau, nextTau, deltaTau, theta);
+			halfStep.advance(U, halfStepU, currentTau, middleTau, 0.5 * deltaTau, theta);
+			halfStep.advance(halfStepU, smallStepsU, middleTau, nextTau, 0.5 * deltaTau, theta);
+
+			double localError = 0.0;
+			for (int k = 0; k < numberOfProducts; k++) {
+				for (int i = 0; i < spaceLength; i++) {
+					localError = Math.max(localError, Math.abs(bigStepU[k][i] - smallStepsU[k][i]));
+				}
+			}
+
+			if (localError <= timeStepTolerance || deltaTau <= minimumDeltaTau) {
+				final double[][] swap = U;
+				U = smallStepsU;
+				smallStepsU = swap;
+				currentTau = nextTau;
+				numberOfTimeSteps += 2;
+			}
+
+			final double stepFactor = localError == 0.0 ? MAXIMUM_STEP_FACTOR
+					: TIME_STEP_SAFETY_FACTOR * Math.pow(timeStepTolerance / localError, 1.0 / (orderOfTheMethod + 1));
+			deltaTau = Math.max(deltaTau * Math.min(MAXIMUM_STEP_FACTOR, Math.max(MINIMUM_STEP_FACTOR, stepFactor)),
+					minimumDeltaTau);
+		}
+		return U;
+	}
+
+	/*
+	 * It returns the ends of the segments in which the time to maturity is split: the different values tau = T - t
+	 * for the monitoring times t in (0, T), sorted, and then T. Without monitoring times there is a single segment.
+	 */
+	private double[] getEndsOfTimeSegments() {
+		final double[] endsOfSegments = new double[monitoringTimes.length + 1];
+		int numberOfSegments = 0;
+		for (final double monitoringTime : monitoringTimes) {
+			final double tau = timeHorizon - monitoringTime;
+			if (tau > 0 && tau < timeHorizon) {
+				endsOfSegments[numberOfSegments++] = tau;
+			}
+		}
+		endsOfSegments[numberOfSegments++] = timeHorizon;
+		final double[] sortedEnds = Arrays.copyOf(endsOfSegments, numberOfSegments);
+		Arrays.sort(sortedEnds);
+		return Arrays.stream(sortedEnds).distinct().toArray();
+	}
+
+	/*
+	 * It returns true if the barriers are monitored at the given time to maturity. Note that we compare tau with
+	 * T - t, computed as in getEndsOfTimeSegments: T - (T - t) is not always equal to t in floating point arithmetic.
+	 */
+	private boolean isMonitoredAtTimeToMaturity(double tau) {
+		for (final double monitoringTime : monitoringTimes) {
+			if (timeHorizon - monitoringTime == tau) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The knock out condition at a monitoring time: the products are worth nothing outside the barriers. If we just
+	 * set to 0 the values at the nodes outside the barriers, the barrier is moved to the next node, and the error is
+	 * of the order of the space step at every monitoring time. So we multiply the value at every node by the part
+	 * of its cell [(S_{i-1} + S_i)/2, (S_i + S_{i+1})/2] which is inside the barriers: this is 1 or 0 for all the
+	 * nodes apart from the ones next to the barriers.
+	 */
+	private void applyKnockOutCondition(double[] stock, double[][] U) {
+		for (int i = 0; i < stock.length; i++) {
+			final double leftEndOfCell = i == 0 ? stock[0] : 0.5 * (stock[i - 1] + stock[i]);
+			final double rightEndOfCell = i == stock.length - 1 ? stock[i] : 0.5 * (stock[i] + stock[i + 1]);
+			final double partOfCellInside;
+			if (rightEndOfCell > leftEndOfCell) {
+				partOfCellInside = Math.max(Math.min(rightEndOfCell, upperBarrier) - Math.max(leftEndOfCell, lowerBarrier), 0.0)
+						/ (rightEndOfCell - leftEndOfCell);
+			}
+			else {
+				partOfCellInside = stock[i] < lowerBarrier || stock[i] > upperBarrier ? 0.0 : 1.0;
+			}
+			if (partOfCellInside < 1.0) {
+				for (final double[] values : U) {
+					values[i] *= partOfCellInside;
+				}
+			}
+		}
+	}
+
+	/*
+	 * One step of the theta method with the tridiagonal operators, from tau to tau + dt with a given theta. The
+	 * diagonals of F and H and the factors of the Thomas algorithm are kept: they are built and factorized again only
+	 * if the local volatility, dt or theta have changed from the previous step.
+	 */
+	private class TridiagonalThetaStep {
+		private final double[] stock;
+		private final double minimumStockPriceOnGrid;
+		private final double maximumStockPriceOnGrid;
+		private final double[][] diffusionOperator;
+		private final double[][] rateOperator;
+		private final FiniteDifference1DBoundary[] boundaryConditions;
+
+		// The diagonals of F and H (lower, main, upper), the right hand side and the factors of the Thomas algorithm
+		private final double[] lowerF;
+		private final double[] diagonalF;
+		private final double[] upperF;
+		private final double[] lowerH;
+		private final double[] diagonalH;
+		private final double[] upperH;
+		private final double[] rightHandSide;
+		private final double[] modifiedUpper;
+		private final double[] inverseOfPivots;
+
+		// The squared local volatilities at the two times of the step, and the ones the operators are built with
+		private double[] sigma;
+		private double[] sigma2;
+		private double[] sigmaOfOperators;
+		private double[] sigma2OfOperators;
+		private double deltaTauOfOperators;
+		private double thetaOfOperators;
+		private boolean isFactorized = false;
+
+		private TridiagonalThetaStep(double[] stock, double minimumStockPriceOnGrid, double maximumStockPriceOnGrid,
+				double[][] diffusionOperator, double[][] rateOperator, FiniteDifference1DBoundary[] boundaryConditions) {
+			this.stock = stock;
+			this.minimumStockPriceOnGrid = minimumStockPriceOnGrid;
+			this.maximumStockPriceOnGrid = maximumStockPriceOnGrid;
+			this.diffusionOperator = diffusionOperator;
+			this.rateOperator = rateOperator;
+			this.boundaryConditions = boundaryConditions;
+			final int spaceLength = stock.length;
+			lowerF = new double[spaceLength];
+			diagonalF = new double[spaceLength];
+			upperF = new double[spaceLength];
+			lowerH = new double[spaceLength];
+			diagonalH = new double[spaceLength];
+			upperH = new double[spaceLength];
+			rightHandSide = new double[spaceLength];
+			modifiedUpper = new double[spaceLength];
+			inverseOfPivots = new double[spaceLength];
+			sigma = new double[spaceLength];
+			sigma2 = new double[spaceLength];
+			sigmaOfOperators = new double[spaceLength];
+			sigma2OfOperators = new double[spaceLength];
+		}
+
+		/*
+		 * It writes in newU the values at tauEnd = tauStart + deltaTau of the products, given their values U at tauStart
+		 */
+		private void advance(double[][] U, double[][] newU, double tauStart, double tauEnd, double deltaTau,
+				double stepTheta) {
+			final int spaceLength = stock.length;
+
+			boolean haveCoefficientsChanged = false;
+			if (!isFactorized || !isTimeHomogeneous) {
+				for (int i = 0; i < spaceLength; i++) {
+					sigma[i] = Math.pow(model.getLocalVolatility(stock[i], timeHorizon - tauStart), 2);
+					sigma2[i] = Math.pow(model.getLocalVolatility(stock[i], timeHorizon - tauEnd), 2);
+				}
+				haveCoefficientsChanged = !isFactorized || !Arrays.equals(sigma, sigmaOfOperators)
+						|| !Arrays.equals(sigma2, sigma2OfOperators);
+				if (haveCoefficientsChanged) {
+					final double[] swap = sigmaOfOperators;
+					sigmaOfOperators = sigma;
+					sigma = swap;
+					final double[] swap2 = sigma2OfOperators;
+					sigma2OfOperators = sigma2;
+					sigma2 = swap2;
+				}
+			}
+			// We build and factorize the operators again only if the coefficients, dt or theta have changed
+			if (haveCoefficientsChanged || deltaTau != deltaTauOfOperators || stepTheta != thetaOfOperators) {
+				for (int i = 0; i < spaceLength; i++) {
+					// Row i of F = I + dt L_m
+					lowerF[i] = deltaTau * (sigmaOfOperators[i] * diffusionOperator[0][i] + rateOperator[0][i]);
+					diagonalF[i] = 1 + deltaTau * (sigmaOfOperators[i] * diffusionOperator[1][i] + rateOperator[1][i]);
+					upperF[i] = deltaTau * (sigmaOfOperators[i] * diffusionOperator[2][i] + rateOperator[2][i]);
+
+					// Row i of H = theta (I - dt L_{m+1}) + (1 - theta) I
+					lowerH[i] = -stepTheta * deltaTau * (sigma2OfOperators[i] * diffusionOperator[0][i] + rateOperator[0][i]);
+					diagonalH[i] = 1 - stepTheta * deltaTau * (sigma2OfOperators[i] * diffusionOperator[1][i] + rateOperator[1][i]);
+					upperH[i] = -stepTheta * deltaTau * (sigma2OfOperators[i] * diffusionOperator[2][i] + rateOperator[2][i]);
+				}
+				factorizeTridiagonalMatrix(lowerH, diagonalH, upperH, modifiedUpper, inverseOfPivots);
+				numberOfFactorizations++;
+				isFactorized = true;
+				deltaTauOfOperators = deltaTau;
+				thetaOfOperators = stepTheta;
+			}
+
+			// Boundary coefficients, as the vectors b and b2 in getValue: the coefficients of the first and last row of L
+			final int last = spaceLength - 1;
+			final double bLowerCoefficient = deltaTau * (sigmaOfOperators[0] * diffusionOperator[0][0] + rateOperator[0][0]);
+			final double bUpperCoefficient = deltaTau * (sigmaOfOperators[last] * diffusionOperator[2][last] + rateOperator[2][last]);
+			final double b2LowerCoefficient = deltaTau * (sigma2OfOperators[0] * diffusionOperator[0][0] + rateOperator[0][0]);
+			final double b2UpperCoefficient = deltaTau * (sigma2OfOperators[last] * diffusionOperator[2][last] + rateOperator[2][last]);
+
+			// The factorization is the same for all the products: we only do the forward and backward substitutions
+			for (int k = 0; k < U.length; k++) {
+				final double[] values = U[k];
+
+				// The boundary terms of the product
+				final double bLower = bLowerCoefficient
+						* timeReversedLowerBoundary(boundaryConditions[k], minimumStockPriceOnGrid, tauStart);
+				final double bUpper = bUpperCoefficient
+						* timeReversedUpperBoundary(boundaryConditions[k], maximumStockPriceOnGrid, tauStart);
+				final double b2Lower = b2LowerCoefficient
+						* timeReversedLowerBoundary(boundaryConditions[k], minimumStockPriceOnGrid, tauEnd);
+				final double b2Upper = b2UpperCoefficient
+						* timeReversedUpperBoundary(boundaryConditions[k], maximumStockPriceOnGrid, tauEnd);
+
+				// ((1 - theta) F + theta I) U
+				for (int i = 0; i < spaceLength; i++) {
+					double value = ((1 - stepTheta) * diagonalF[i] + stepTheta) * values[i];
+					if (i > 0) {
+						value += (1 - stepTheta) * lowerF[i] * values[i - 1];
+					}
+					if (i < spaceLength - 1) {
+						value += (1 - stepTheta) * upperF[i] * values[i + 1];
+					}
+					rightHandSide[i] = value;
+				}
+				rightHandSide[0] += bLower * (1 - stepTheta) + b2Lower * stepTheta;
+				rightHandSide[last] += bUpper * (1 - stepTheta) + b2Upper * stepTheta;
+
+				solveFactorizedTridiagonalSystem(lowerH, modifiedUpper, inverseOfPivots, rightHandSide, newU[k]);
+			}
+		}
+	}
+
+	/*
+	 * It returns the interior nodes of a non-uniform grid between minimumStockPriceOnGrid and maximumStockPriceOnGrid
+	 * with numberOfSpaceSteps intervals. The nodes are S_j = J^{-1}(J(S_min) + j (J(S_max) - J(S_min)) / N) for
+	 * J(S) = 2 (S - S_min) / (S_max - S_min) + sum_k asinh((S - c_k) / alpha),
+	 * where c_k are the concentration points and alpha = GRID_CONCENTRATION_WIDTH (S_max - S_min). Since J grows
+	 * faster close to the points c_k, there the nodes are closer. J is inverted by bisection.
+	 */
+	private double[] getNonUniformGrid(double minimumStockPriceOnGrid, double maximumStockPriceOnGrid,
+			int numberOfSpaceSteps, double[] concentrationPoints) {
+		final double width = maximumStockPriceOnGrid - minimumStockPriceOnGrid;
+		final double alpha = GRID_CONCENTRATION_WIDTH * width;
+		final DoubleUnaryOperator gridMap = stockPrice -> {
+			double value = 2 * (stockPrice - minimumStockPriceOnGrid) / width;
+			for (final double concentrationPoint : concentrationPoints) {
+				final double scaledDistance = (stockPrice - concentrationPoint) / alpha;
+				// asinh(y) = sign(y) log(|y| + sqrt(y^2 + 1))
+				value += Math.signum(scaledDistance)
+						* Math.log(Math.abs(scaledDistance) + Math.sqrt(scaledDistance * scaledDistance + 1));
+			}
+			return value;
+		};
+
+		final double mapAtMinimum = gridMap.applyAsDouble(minimumStockPriceOnGrid);
+		final double mapAtMaximum = gridMap.applyAsDouble(maximumStockPriceOnGrid);
+		final double[] stock = new double[numberOfSpaceSteps - 1];
+		for (int j = 0; j < stock.length; j++) {
+			final double target = mapAtMinimum + (j + 1) * (mapAtMaximum - mapAtMinimum) / numberOfSpaceSteps;
+			double left = j == 0 ? minimumStockPriceOnGrid : stock[j - 1];
+			double right = maximumStockPriceOnGrid;
+			for (int iteration = 0; iteration < 100 && right - left > 1E-12 * width; iteration++) {
+				final double middle = 0.5 * (left + right);
+				if (gridMap.applyAsDouble(middle) < target) {
+					left = middle;
+				} else {
+					right = middle;
+				}
+			}
+			stock[j] = 0.5 * (left + right);
+		}
+		return stock;
+	}
+
+	/*
+	 * The first part of the Thomas algorithm for A u = d, where A has lower diagonal lower[1..n-1], main diagonal
+	 * diagonal[0..n-1] and upper diagonal upper[0..n-2]: it only depends on A, so it can be done once for many
+	 * right hand sides. The factors are written in modifiedUpper and inverseOfPivots.
+	 */
+	private static void factorizeTridiagonalMatrix(double[] lower, double[] diagonal, double[] upper,
+			double[] modifiedUpper, double[] inverseOfPivots) {
+		final int n = diagonal.length;
+		inverseOfPivots[0] = 1.0 / diagonal[0];
+		modifiedUpper[0] = upper[0] * inverseOfPivots[0];
+		for (int i = 1; i < n; i++) {
+			inverseOfPivots[i] = 1.0 / (diagonal[i] - lower[i] * modifiedUpper[i - 1]);
+			modifiedUpper[i] = upper[i] * inverseOfPivots[i];
+		}
+	}
+
+	/*
+	 * The second part of the Thomas algorithm: it solves A u = d given the factors of A. The right hand side d
+	 * gets overwritten.
+	 */
+	private static void solveFactorizedTridiagonalSystem(double[] lower, double[] modifiedUpper, double[] inverseOfPivots,
+			double[] d, double[] solution) {
+		final int n = d.length;
+		d[0] = d[0] * inverseOfPivots[0];
+		for (int i = 1; i < n; i++) {
+			d[i] = (d[i] - lower[i] * d[i - 1]) * inverseOfPivots[i];
+		}
+		solution[n - 1] = d[n - 1];
+		for (int i = n - 2; i >= 0; i--) {
+			solution[i] = d[i] - modifiedUpper[i] * solution[i + 1];
+		}
+	}
+
 	// Time-reversed Boundary Conditions
 	//    private double U_initial(double stockPrice, double tau) {
 	//        return valueAtMaturity
 	//    }
-	private double timeReversedLowerBoundary(double stockPrice, double tau) {
+	private double timeReversedLowerBoundary(FiniteDifference1DBoundary boundaryCondition, double stockPrice, double tau) {
 		return boundaryCondition.getValueAtLowerBoundary(model, timeHorizon - tau, stockPrice);
 	}
 
-	private double timeReversedUpperBoundary(double stockPrice, double tau) {
+	private double timeReversedUpperBoundary(FiniteDifference1DBoundary boundaryCondition, double stockPrice, double tau) {
 		return boundaryCondition.getValueAtUpperBoundary(model, timeHorizon - tau, stockPrice);
 	}
 
@@ -0,0 +1,175 @@
+package it.univr.dissertation.usefulclass;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.assetderivativevaluation.AssetModelMonteCarloSimulationModel;
+import net.finmath.stochastic.RandomVariable;
+import net.finmath.time.TimeDiscretization;
+
+/**
+ * This class stores the simulated paths of an underlying outside the Java heap, in a temporary file on the local
+ * disk which is mapped in memory. For every time t_k of the time discretization there is one contiguous column of
+ * doubles with the realizations X_{t_k}(omega_j) of all the paths, so the paths can be written chunk by chunk
+ * (for example by simulations with a small number of paths each) and then read one time after the other into a
+ * primitive buffer, without constructing any RandomVariable. In this way the heap only needs the buffers, and the
+ * operating system decides which parts of the file stay in memory.
+ *
+ * Since the file is deleted when the store is closed, the store should be used in a try-with-resources block.
+ * The numeraire is supposed to be deterministic, as in the Black-Scholes model, and the Monte Carlo weights equal.
+ */
+public class MemoryMappedPathStore implements AutoCloseable {
+
+	private static final int BYTES_PER_DOUBLE = Double.BYTES;
+
+	private final TimeDiscretization timeDiscretization;
+	private final int numberOfPaths;
+
+	private final Path file;
+	private final FileChannel channel;
+	//one mapped column for every time index
+	private final MappedByteBuffer[] columns;
+	//the (deterministic) numeraire at the times of the time discretization
+	private final double[] numeraires;
+
+	/**
+	 * It constructs an empty store for the given number of paths, with one column for every time of the time
+	 * discretization. The temporary file is created in the default temporary directory.
+	 *
+	 * @param timeDiscretization the time discretization of the simulation
+	 * @param numberOfPaths the number of paths
+	 * @throws IOException if the temporary file cannot be created or mapped
+	 */
+	public MemoryMappedPathStore(TimeDiscretization timeDiscretization, int numberOfPaths) throws IOException {
+		if (numberOfPaths > Integer.MAX_VALUE / BYTES_PER_DOUBLE) {
+			throw new IllegalArgumentException("Error: too many paths for a single column!");
+		}
+		this.timeDiscretization = timeDiscretization;
+		this.numberOfPaths = numberOfPaths;
+		numeraires = new double[timeDiscretization.getNumberOfTimes()];
+
+		file = Files.createTempFile("paths", ".bin");
+		FileChannel openedChannel = null;
+		long columnSize = (long) numberOfPaths * BYTES_PER_DOUBLE;
+		columns = new MappedByteBuffer[timeDiscretization.getNumberOfTimes()];
+		try {
+			openedChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			for (int timeIndex = 0; timeIndex < columns.length; timeIndex++) {
+				columns[timeIndex] = openedChannel.map(FileChannel.MapMode.READ_WRITE, timeIndex * columnSize, columnSize);
+				columns[timeIndex].order(ByteOrder.nativeOrder());
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			//the store is never returned, so nobody else can close it: we close the file and delete it here
+			try {
+				if (openedChannel != null) {
+					openedChannel.close();
+				}
+			}
+			catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			try {
+				Files.deleteIfExists(file);
+			}
+			catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+		channel = openedChannel;
+	}
+
+	/**
+	 * It writes all the simulated paths of the given model in the store, from the path firstPath on. The model
+	 * must have the same time discretization of the store. Different models can be written in parallel if they
+	 * write different paths.
+	 *
+	 * @param model the simulation of a chunk of paths
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @param firstPath the index in the store of the first path of the model
+	 * @throws CalculationException
+	 */
+	public void writePaths(AssetModelMonteCarloSimulationModel model, int underlyingIndex, int firstPath)
+			throws CalculationException {
+		if (firstPath < 0 || firstPath + model.getNumberOfPaths() > numberOfPaths) {
+			throw new IllegalArgumentException("Error: the paths of the model do not fit in the store!");
+		}
+		if (model.getTimeDiscretization().getNumberOfTimes() != columns.length) {
+			throw new IllegalArgumentException("Error: the model must have the same time discretization of the store!");
+		}
+		for (int timeIndex = 0; timeIndex < columns.length; timeIndex++) {
+			RandomVariable realizations = model.getAssetValue(timeIndex, underlyingIndex);
+			//a view of the column for this thread only: the position is not shared
+			DoubleBuffer column = columns[timeIndex].duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			column.position(firstPath);
+			for (int pathIndex = 0; pathIndex < model.getNumberOfPaths(); pathIndex++) {
+				column.put(realizations.get(pathIndex));
+			}
+
+			RandomVariable numeraire = model.getNumeraire(timeDiscretization.getTime(timeIndex));
+			if (!numeraire.isDeterministic()) {
+				throw new IllegalArgumentException("Error: the numeraire must be deterministic!");
+			}
+			numeraires[timeIndex] = numeraire.get(0);
+		}
+	}
+
+	/**
+	 * It copies the realizations X_{t_k}(omega_j) of all the paths at the given time index in the given buffer.
+	 *
+	 * @param timeIndex the time index k
+	 * @param buffer the buffer, of length equal to the number of paths, which gets overwritten
+	 */
+	public void readRealizations(int timeIndex, double[] buffer) {
+		if (buffer.length != numberOfPaths) {
+			throw new IllegalArgumentException("Error: the buffer must have length equal to the number of paths!");
+		}
+		columns[timeIndex].duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer().get(buffer);
+	}
+
+	/**
+	 * It returns the numeraire at the given time index
+	 * @param timeIndex the time index
+	 * @return the numeraire at the given time index
+	 */
+	public double getNumeraire(int timeIndex) {
+		return numeraires[timeIndex];
+	}
+
+	/**
+	 * It returns the time discretization of the stored paths
+	 * @return the time discretization of the stored paths
+	 */
+	public TimeDiscretization getTimeDiscretization() {
+		return timeDiscretization;
+	}
+
+	/**
+	 * It returns the number of stored paths
+	 * @return the number of stored paths
+	 */
+	public int getNumberOfPaths() {
+		return numberOfPaths;
+	}
+
+	/**
+	 * It closes the file and deletes it. The mapped memory is released when the columns are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
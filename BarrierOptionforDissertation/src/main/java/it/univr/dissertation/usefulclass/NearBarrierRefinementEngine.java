@@ -0,0 +1,152 @@
+package it.univr.dissertation.usefulclass;
+
+import java.util.stream.IntStream;
+
+/**
+ * This class refines, for a time step t_k -> t_{k+1} of a Monte Carlo simulation of a Black-Scholes model,
+ * the paths which at t_k are close to the lower barrier B_L. For any such path, we simulate the underlying
+ * on numberOfSubIntervals sub-intervals of the time step, starting from X_{t_k}. If the simulated value goes
+ * below B_L, this value replaces X_{t_{k+1}}, so that the path is knocked out. Otherwise, X_{t_{k+1}} is left
+ * as it is.
+ *
+ * Differently from constructing a whole Monte Carlo model with one path for every path close to the barrier,
+ * here we first collect the indices of all these paths in a primitive int[] batch and then simulate all
+ * their sub-intervals together, one sub-interval after the other, in a single pass over primitive arrays.
+ * The arrays are allocated once and reused for all the time steps, so the cost of a time step only depends
+ * on the number of paths close to the barrier.
+ */
+public class NearBarrierRefinementEngine {
+
+	private final double lowerBarrier;
+	private final double bufferLength;
+
+	//drift and diffusion of the logarithm of the underlying over one sub-interval
+	private final double logDriftForSubInterval;
+	private final double logDiffusionForSubInterval;
+	private final int numberOfSubIntervals;
+
+	//the number of paths of the batch which are simulated together by a single thread
+	private static final int SLICE_LENGTH = 4096;
+
+	//reusable buffers: the indices of the paths close to the barrier and the values of the refined paths
+	private final int[] batchOfPathIndices;
+	private final double[] refinedValues;
+
+	/**
+	 * It constructs an object which refines the paths close to the lower barrier.
+	 *
+	 * @param lowerBarrier the lower barrier B_L
+	 * @param bufferLength a path is refined if at t_k it is inside [B_L, B_L + bufferLength]
+	 * @param riskFreeRate the risk free rate of the Black-Scholes model
+	 * @param volatility the log-volatility of the Black-Scholes model
+	 * @param numberOfSubIntervals the number of sub-intervals in which every time step is split
+	 * @param subIntervalLength the length of every sub-interval
+	 * @param numberOfPaths the number of paths of the simulation: it gives the length of the buffers
+	 */
+	public NearBarrierRefinementEngine(double lowerBarrier, double bufferLength, double riskFreeRate, double volatility,
+			int numberOfSubIntervals, double subIntervalLength, int numberOfPaths) {
+		this.lowerBarrier = lowerBarrier;
+		this.bufferLength = bufferLength;
+		this.numberOfSubIntervals = numberOfSubIntervals;
+		logDriftForSubInterval = (riskFreeRate - 0.5 * volatility * volatility) * subIntervalLength;
+		logDiffusionForSubInterval = volatility * Math.sqrt(subIntervalLength);
+		batchOfPathIndices = new int[numberOfPaths];
+		refinedValues = new double[numberOfPaths];
+	}
+
+	/**
+	 * It refines the paths which are close to the barrier at the previous time. The values at the current
+	 * time of the paths which go below the barrier in the refinement are overwritten by the simulated values
+	 * below the barrier.
+	 * The normal increment of a path in a sub-interval is identified by (path index, time index, sub-interval
+	 * index) in the given counter-based stream, so it does not depend on the order in which the paths are
+	 * simulated. For this reason, if the batch is big, we split it in slices which are simulated in parallel:
+	 * the result is bit-identical to the one we would get sequentially.
+	 *
+	 * @param previousRealizations the realizations X_{t_k} of all paths
+	 * @param currentRealizations the realizations X_{t_{k+1}} of all paths: it gets modified
+	 * @param randomStream the stream of the normal increments of the refinement
+	 * @param timeIndex the time index k+1 of the current time, used as part of the key of the random numbers
+	 * @return the number of paths which have been refined
+	 */
+	public int refine(double[] previousRealizations, double[] currentRealizations, CounterBasedRandomStream randomStream,
+			int timeIndex) {
+		return refine(previousRealizations, currentRealizations, randomStream, timeIndex, null);
+	}
+
+	/**
+	 * It does the same as refine(previousRealizations, currentRealizations, randomStream, timeIndex), and it also
+	 * sets to zero the elements of insideBarrier corresponding to the paths which go below the barrier in the
+	 * refinement. In this way the caller does not have to check all the paths again.
+	 *
+	 * @param previousRealizations the realizations X_{t_k} of all paths
+	 * @param currentRealizations the realizations X_{t_{k+1}} of all paths: it gets modified
+	 * @param randomStream the stream of the normal increments of the refinement
+	 * @param timeIndex the time index k+1 of the current time, used as part of the key of the random numbers
+	 * @param insideBarrier the indicators of the paths which are still inside the barriers: it gets modified
+	 * (it can be null)
+	 * @return the number of paths which have been refined
+	 */
+	public int refine(double[] previousRealizations, double[] currentRealizations, CounterBasedRandomStream randomStream,
+			int timeIndex, double[] insideBarrier) {
+
+		//first we collect the paths close to the barrier
+		int batchSize = 0;
+		for (int pathIndex = 0; pathIndex < previousRealizations.length; pathIndex++) {
+			double previousRealization = previousRealizations[pathIndex];
+			//if the past realization is far from the lowerBarrier, or is already below the barrier, there is nothing to do
+			if (previousRealization > lowerBarrier + bufferLength || previousRealization < lowerBarrier) {
+				continue;
+			}
+			batchOfPathIndices[batchSize] = pathIndex;
+			refinedValues[batchSize] = previousRealization;
+			batchSize++;
+		}
+
+		//now we simulate them, slice by slice
+		final int numberOfSlices = (batchSize + SLICE_LENGTH - 1) / SLICE_LENGTH;
+		final int lastBatchIndex = batchSize;
+		if (numberOfSlices > 1) {
+			IntStream.range(0, numberOfSlices).parallel().forEach(sliceIndex -> refineSlice(sliceIndex * SLICE_LENGTH,
+					Math.min((sliceIndex + 1) * SLICE_LENGTH, lastBatchIndex), currentRealizations, randomStream, timeIndex,
+						insideBarrier));
+		}
+		else {
+			refineSlice(0, batchSize, currentRealizations, randomStream, timeIndex, insideBarrier);
+		}
+		return batchSize;
+	}
+
+	/*
+	 * It simulates together all the paths of the batch between firstBatchIndex (included) and lastBatchIndex
+	 * (excluded), one sub-interval after the other. The elements of the buffers from firstBatchIndex to
+	 * lastActiveIndex (excluded) are the paths which have not yet gone below the barrier: when a path does,
+	 * we replace it with the last active one, so that we never look at it again.
+	 */
+	private void refineSlice(int firstBatchIndex, int lastBatchIndex, double[] currentRealizations,
+			CounterBasedRandomStream randomStream, int timeIndex, double[] insideBarrier) {
+		int lastActiveIndex = lastBatchIndex;
+		for (int subIntervalIndex = 0; subIntervalIndex < numberOfSubIntervals && lastActiveIndex > firstBatchIndex; subIntervalIndex++) {
+			for (int batchIndex = firstBatchIndex; batchIndex < lastActiveIndex; batchIndex++) {
+				int pathIndex = batchOfPathIndices[batchIndex];
+				double simulatedValue = refinedValues[batchIndex] * Math.exp(logDriftForSubInterval
+						+ logDiffusionForSubInterval * randomStream.getNormal(pathIndex, timeIndex, subIntervalIndex));
+				if (simulatedValue < lowerBarrier) {
+					//if it goes below the barrier, this is the value at the current time
+					currentRealizations[pathIndex] = simulatedValue;
+					if (insideBarrier != null) {
+						insideBarrier[pathIndex] = 0.0;
+					}
+					lastActiveIndex--;
+					batchOfPathIndices[batchIndex] = batchOfPathIndices[lastActiveIndex];
+					refinedValues[batchIndex] = refinedValues[lastActiveIndex];
+					//the path now in batchIndex has still to be simulated for this sub-interval
+					batchIndex--;
+				}
+				else {
+					refinedValues[batchIndex] = simulatedValue;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package it.univr.dissertation.usefulclass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.assetderivativevaluation.AssetModelMonteCarloSimulationModel;
+import net.finmath.stochastic.RandomVariable;
+import net.finmath.time.TimeDiscretization;
+
+/**
+ * This class stores, for the simulated paths of an underlying X, the running minimum and maximum
+ * m_k(omega_j) = min_{i <= k} X_{t_i}(omega_j) and M_k(omega_j) = max_{i <= k} X_{t_i}(omega_j)
+ * as primitive arrays. With them, the check of a discretely monitored barrier with maturity T becomes
+ * 1_{B_L <= X_{t_i}(omega_j)<= B_U for all t_i <= T} = 1_{B_L <= m_k(omega_j) and M_k(omega_j) <= B_U},
+ * with t_k the last time of the time discretization before T: two comparisons per path, and no loop over time.
+ *
+ * The extrema are computed only once for every simulation and underlying, the first time they are asked for,
+ * and then they are shared by all the products valued on the same simulation (which is identified by the object,
+ * not by its data). We can store them:
+ * - at all the times of the time discretization, so that they can be used for any maturity: this needs twice the
+ *   memory of the simulated underlying;
+ * - only at the time index of a given maturity: this needs two arrays of length equal to the number of paths;
+ * - only at the time indices of some given maturities, for example the ones of a portfolio of options: this needs
+ *   two arrays of length equal to the number of paths per maturity, and the paths are still scanned only once.
+ * The caches are kept in a WeakHashMap, so they are removed together with the simulations.
+ * Products valued in parallel on different simulations, for example the chunks of
+ * BarrierOptionMonteCarloParallelValuation, compute their extrema at the same time: only the ones which ask for the
+ * same simulation and key wait for each other, see getCache.
+ */
+public class PathExtremumCache {
+
+	//the keys of the inner map are (underlyingIndex, stored time indices), with the only index -1 if we store all the times
+	private static final Map<AssetModelMonteCarloSimulationModel, Map<List<Integer>, CacheHolder>> caches =
+			new WeakHashMap<AssetModelMonteCarloSimulationModel, Map<List<Integer>, CacheHolder>>();
+
+	private static final int ALL_TIMES = -1;
+
+	private final TimeDiscretization timeDiscretization;
+	//the sorted time indices at which we store the extrema, or null if we store all the times
+	private final int[] storedTimeIndices;
+	//runningMinima[k][j] = m_k(omega_j), and the same for the maxima. If we store only some times, k is the position
+	//of the time index in storedTimeIndices
+	private final double[][] runningMinima;
+	private final double[][] runningMaxima;
+
+	/*
+	 * It scans the paths up to the last of the given time indices and stores the extrema at these time indices, or
+	 * at all the times if storedTimeIndices is null. Note that it does not keep any reference to the model: otherwise
+	 * the model would never be removed from the WeakHashMap.
+	 */
+	private PathExtremumCache(AssetModelMonteCarloSimulationModel model, int underlyingIndex, int[] storedTimeIndices)
+			throws CalculationException {
+		timeDiscretization = model.getTimeDiscretization();
+		this.storedTimeIndices = storedTimeIndices;
+
+		boolean isStoringAllTimes = storedTimeIndices == null;
+		int numberOfPaths = model.getNumberOfPaths();
+		int lastTimeIndex = isStoringAllTimes ? timeDiscretization.getNumberOfTimes() - 1
+				: storedTimeIndices[storedTimeIndices.length - 1];
+		int numberOfStoredTimes = isStoringAllTimes ? lastTimeIndex + 1 : storedTimeIndices.length;
+		runningMinima = new double[numberOfStoredTimes][];
+		runningMaxima = new double[numberOfStoredTimes][];
+
+		double[] runningMinimum = new double[numberOfPaths];
+		double[] runningMaximum = new double[numberOfPaths];
+		Arrays.fill(runningMinimum, Double.POSITIVE_INFINITY);
+		Arrays.fill(runningMaximum, Double.NEGATIVE_INFINITY);
+
+		//the position in storedTimeIndices of the next time index at which we store the extrema
+		int nextStoredIndex = 0;
+		for (int timeIndex = 0; timeIndex <= lastTimeIndex; timeIndex++) {
+			//this is the RandomVariable stored in the model: we only read it
+			RandomVariable realizationsAtCurrentTime = model.getAssetValue(timeIndex, underlyingIndex);
+			for (int pathIndex = 0; pathIndex < numberOfPaths; pathIndex++) {
+				double realization = realizationsAtCurrentTime.get(pathIndex);
+				/*
+				 * a NaN realization stays in the extrema, so that the path is outside any barrier, as in
+				 * BarrierPathMonitor.fillSurvivalProbabilities
+				 */
+				boolean isNaN = Double.isNaN(realization);
+				if (realization < runningMinimum[pathIndex] || isNaN) {
+					runningMinimum[pathIndex] = realization;
+				}
+				if (realization > runningMaximum[pathIndex] || isNaN) {
+					runningMaximum[pathIndex] = realization;
+				}
+			}
+			if (isStoringAllTimes) {
+				runningMinima[timeIndex] = runningMinimum.clone();
+				runningMaxima[timeIndex] = runningMaximum.clone();
+			}
+			else if (timeIndex == storedTimeIndices[nextStoredIndex]) {
+				//the last time index is stored without copying the arrays, which are not modified anymore
+				boolean isLastStoredTime = nextStoredIndex == storedTimeIndices.length - 1;
+				runningMinima[nextStoredIndex] = isLastStoredTime ? runningMinimum : runningMinimum.clone();
+				runningMaxima[nextStoredIndex] = isLastStoredTime ? runningMaximum : runningMaximum.clone();
+				nextStoredIndex++;
+			}
+		}
+	}
+
+	/**
+	 * It returns the extrema of the paths of the given underlying stored at all the times of the time
+	 * discretization. They are computed the first time this method is called for the given model.
+	 * They need twice the memory of the simulated underlying as long as the model exists: use it only when products
+	 * with many different maturities are valued on the model, otherwise use getPathExtremaAtMaturity.
+	 *
+	 * @param model the model simulating the underlying
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @return the cache of the extrema at all times
+	 * @throws CalculationException
+	 */
+	public static PathExtremumCache getPathExtrema(AssetModelMonteCarloSimulationModel model, int underlyingIndex)
+			throws CalculationException {
+		return getCache(model, underlyingIndex, null);
+	}
+
+	/**
+	 * It returns the extrema of the paths of the given underlying stored only at the last time of the time
+	 * discretization before maturity. They are computed the first time this method is called for the given
+	 * model and maturity. This is what the products use by default: the memory it needs does not depend on the
+	 * number of times.
+	 *
+	 * @param model the model simulating the underlying
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @param maturity the maturity of the products which use the cache
+	 * @return the cache of the extrema at maturity
+	 * @throws CalculationException
+	 */
+	public static PathExtremumCache getPathExtremaAtMaturity(AssetModelMonteCarloSimulationModel model,
+			int underlyingIndex, double maturity) throws CalculationException {
+		return getCache(model, underlyingIndex, new int[] {getLastTimeIndex(model.getTimeDiscretization(), maturity)});
+	}
+
+	/**
+	 * It returns the extrema of the paths of the given underlying stored only at the last times of the time
+	 * discretization before the given maturities. They are computed with a single scan of the paths the first time
+	 * this method is called for the given model and maturities. This is what a portfolio of options with different
+	 * maturities uses, see BarrierOptionMonteCarloPortfolio.
+	 *
+	 * @param model the model simulating the underlying
+	 * @param underlyingIndex it identifies the underlying if the model is multi-dimensional
+	 * @param maturities the maturities of the products which use the cache, in any order and also repeated
+	 * @return the cache of the extrema at the maturities
+	 * @throws CalculationException
+	 */
+	public static PathExtremumCache getPathExtremaAtMaturities(AssetModelMonteCarloSimulationModel model,
+			int underlyingIndex, double[] maturities) throws CalculationException {
+		if (maturities.length == 0) {
+			throw new IllegalArgumentException("Error: at least one maturity must be given!");
+		}
+		TimeDiscretization timeDiscretization = model.getTimeDiscretization();
+		int[] storedTimeIndices = Arrays.stream(maturities).mapToInt(maturity -> getLastTimeIndex(timeDiscretization, maturity))
+				.distinct().sorted().toArray();
+		return getCache(model, underlyingIndex, storedTimeIndices);
+	}
+
+	/*
+	 * It returns the cache for the given key, constructing it if it is not there. The lock on the WeakHashMap is
+	 * only held to get the map of the model, which is a ConcurrentHashMap: there we get the holder of the key, and
+	 * the cache is constructed by the holder, which only locks itself. So the extrema are computed only once also if
+	 * more products are valued in parallel on the same model, and the ones of different models or keys are computed
+	 * at the same time.
+	 */
+	private static PathExtremumCache getCache(AssetModelMonteCarloSimulationModel model,
+			int underlyingIndex, int[] storedTimeIndices) throws CalculationException {
+		Map<List<Integer>, CacheHolder> cachesOfModel;
+		synchronized (caches) {
+			cachesOfModel = caches.computeIfAbsent(model, m -> new ConcurrentHashMap<List<Integer>, CacheHolder>());
+		}
+		List<Integer> key = new ArrayList<Integer>();
+		key.add(underlyingIndex);
+		if (storedTimeIndices == null) {
+			key.add(ALL_TIMES);
+		}
+		else {
+			for (int timeIndex : storedTimeIndices) {
+				key.add(timeIndex);
+			}
+		}
+		CacheHolder holder = cachesOfModel.computeIfAbsent(key, k -> new CacheHolder());
+		return holder.getCache(model, underlyingIndex, storedTimeIndices);
+	}
+
+	/*
+	 * It constructs the cache of a given model and key the first time it is asked. Note that it does not keep any
+	 * reference to the model, which is given to getCache: otherwise the model would never be removed from the
+	 * WeakHashMap.
+	 */
+	private static final class CacheHolder {
+
+		private PathExtremumCache cache;
+
+		synchronized PathExtremumCache getCache(AssetModelMonteCarloSimulationModel model, int underlyingIndex,
+				int[] storedTimeIndices) throws CalculationException {
+			if (cache == null) {
+				cache = new PathExtremumCache(model, underlyingIndex, storedTimeIndices);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * It returns the running minima m_k(omega_j), for t_k the last time of the time discretization before maturity.
+	 * Note that the array is shared by all the products using the cache: it must not be modified.
+	 *
+	 * @param maturity the maturity
+	 * @return the array of the running minima of the paths
+	 */
+	public double[] getRunningMinimum(double maturity) {
+		return runningMinima[getStoredIndex(maturity)];
+	}
+
+	/**
+	 * It returns the running maxima M_k(omega_j), for t_k the last time of the time discretization before maturity.
+	 * Note that the array is shared by all the products using the cache: it must not be modified.
+	 *
+	 * @param maturity the maturity
+	 * @return the array of the running maxima of the paths
+	 */
+	public double[] getRunningMaximum(double maturity) {
+		return runningMaxima[getStoredIndex(maturity)];
+	}
+
+	/**
+	 * It writes in the given buffer 1 for the paths which stay inside [B_L,B_U] at all the times t_k <= maturity of
+	 * the time discretization, and 0 for the other ones. A path with a NaN realization is outside the barriers.
+	 *
+	 * @param maturity the last time at which we check the barrier
+	 * @param lowerBarrier the lower barrier B_L
+	 * @param upperBarrier the upper barrier B_U
+	 * @param insideBarrier the buffer, of length equal to the number of paths, which gets overwritten
+	 */
+	public void fillInsideBarrierIndicator(double maturity, double lowerBarrier, double upperBarrier, double[] insideBarrier) {
+		double[] runningMinimum = getRunningMinimum(maturity);
+		double[] runningMaximum = getRunningMaximum(maturity);
+		if (insideBarrier.length != runningMinimum.length) {
+			throw new IllegalArgumentException("Error: the buffer must have length equal to the number of paths!");
+		}
+		for (int pathIndex = 0; pathIndex < insideBarrier.length; pathIndex++) {
+			insideBarrier[pathIndex] = runningMinimum[pathIndex] >= lowerBarrier && runningMaximum[pathIndex] <= upperBarrier ? 1.0 : 0.0;
+		}
+	}
+
+	/*
+	 * It returns the index in runningMinima and runningMaxima corresponding to the given maturity.
+	 */
+	private int getStoredIndex(double maturity) {
+		int timeIndex = getLastTimeIndex(timeDiscretization, maturity);
+		if (storedTimeIndices == null) {
+			if (timeIndex >= runningMinima.length) {
+				throw new IllegalArgumentException("Error: the maturity is after the last time of the simulation!");
+			}
+			return timeIndex;
+		}
+		int storedIndex = Arrays.binarySearch(storedTimeIndices, timeIndex);
+		if (storedIndex < 0) {
+			throw new IllegalArgumentException("Error: the extrema are not stored for this maturity!");
+		}
+		return storedIndex;
+	}
+
+	/**
+	 * It returns the index of the last time of the time discretization which is smaller or equal than the maturity:
+	 * the barrier of an option with this maturity is checked at all the times up to this index.
+	 *
+	 * @param timeDiscretization the time discretization
+	 * @param maturity the maturity
+	 * @return the index of the last time smaller or equal than the maturity
+	 */
+	public static int getLastTimeIndex(TimeDiscretization timeDiscretization, double maturity) {
+		int timeIndex = timeDiscretization.getTimeIndex(maturity);
+		if (timeIndex < 0) {
+			//maturity is not a time of the time discretization: getTimeIndex returns -(insertion point)-1
+			timeIndex = Math.max(-timeIndex - 2, 0);
+		}
+		return Math.min(timeIndex, timeDiscretization.getNumberOfTimes() - 1);
+	}
+}
@@ -0,0 +1,89 @@
+package it.univr.dissertation.usefulclass;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * This class stores the tree models approximating Black-Scholes which have already been constructed, so that all the
+ * valuations with the same model parameters (S_0, r, sigma, T, number of times) share the same object: the values of
+ * the tree are then generated only once, the first time they are asked, and then only read.
+ * The models are kept in a ConcurrentHashMap, so they can be asked by many threads at the same time: a model is
+ * constructed only once also if two threads ask for it together. This is safe since the tree models generate their
+ * values only once also when they are used by many threads, see ApproximatingTreeModelForBlackScholes.getTreeModel.
+ * The models are never removed, unless clear is called.
+ */
+public class TreeModelCache {
+
+	//the keys are the name of the model followed by its parameters
+	private static final ConcurrentHashMap<List<Object>, ApproximatingTreeModelInterface> models =
+			new ConcurrentHashMap<List<Object>, ApproximatingTreeModelInterface>();
+
+	private TreeModelCache() {
+	}
+
+	/**
+	 * It returns the Cox-Ross-Rubinstein model with the given parameters, constructing it if it is not there.
+	 *
+	 * @param initialPrice, the initial price of the asset modeled by the process
+	 * @param riskFreeRate, the number r such that the value of a risk-free bond at time T is e^(rT)
+	 * @param volatility, the log-volatility of the Black-Scholes model
+	 * @param lastTime, the last time T in the time discretization 0=t_0<t_1<..<t_n=T
+	 * @param numberOfTimes, the number of times in the equally spaced time steps that we take for the approximating
+	 * time discretization 0=t_0<t_1<..<t_n=T
+	 * @return the model with the given parameters, shared by all the ones who ask for it
+	 */
+	public static CoxRossRubinsteinModel getCoxRossRubinsteinModel(double initialPrice, double riskFreeRate,
+			double volatility, double lastTime, int numberOfTimes) {
+		List<Object> key = Arrays.asList("CoxRossRubinstein", initialPrice, riskFreeRate, volatility, lastTime, numberOfTimes);
+		return getModel(key, () -> new CoxRossRubinsteinModel(initialPrice, riskFreeRate, volatility, lastTime, numberOfTimes));
+	}
+
+	/**
+	 * It returns the trinomial model with a layer of nodes on the given barrier with the given parameters,
+	 * constructing it if it is not there.
+	 *
+	 * @param initialPrice, the initial price of the asset modeled by the process
+	 * @param riskFreeRate, the number r such that the value of a risk-free bond at time T is e^(rT)
+	 * @param volatility, the log-volatility of the Black-Scholes model
+	 * @param lastTime, the last time T in the time discretization 0=t_0<t_1<..<t_n=T
+	 * @param numberOfTimes, the number of times in the equally spaced time steps that we take for the approximating
+	 * time discretization 0=t_0<t_1<..<t_n=T
+	 * @param barrier, the barrier on which we want a layer of nodes, lower or upper
+	 * @return the model with the given parameters, shared by all the ones who ask for it
+	 */
+	public static BarrierMatchingTrinomialModel getBarrierMatchingTrinomialModel(double initialPrice, double riskFreeRate,
+			double volatility, double lastTime, int numberOfTimes, double barrier) {
+		List<Object> key = Arrays.asList("BarrierMatchingTrinomial", initialPrice, riskFreeRate, volatility, lastTime,
+				numberOfTimes, barrier);
+		return getModel(key, () -> new BarrierMatchingTrinomialModel(initialPrice, riskFreeRate, volatility, lastTime,
+				numberOfTimes, barrier));
+	}
+
+	/*
+	 * It returns the model for the given key, constructing it with the given supplier if it is not there. The
+	 * constructors of the models only set their parameters, so the lock that computeIfAbsent takes on the key is
+	 * held only for a short time: the values of the tree are generated later, when they are needed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends ApproximatingTreeModelInterface> T getModel(List<Object> key, Supplier<T> modelConstructor) {
+		//the first element of the key identifies the class of the model, so the cast is safe
+		return (T) models.computeIfAbsent(key, k -> modelConstructor.get());
+	}
+
+	/**
+	 * It removes all the models, so that their memory can be freed
+	 */
+	public static void clear() {
+		models.clear();
+	}
+
+	/**
+	 * It returns the number of models which are stored
+	 * @return the number of models which are stored
+	 */
+	public static int size() {
+		return models.size();
+	}
+}
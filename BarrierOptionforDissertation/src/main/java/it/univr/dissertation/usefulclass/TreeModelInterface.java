@@ -16,4 +16,58 @@ public interface TreeModelInterface {
 	double[] getTransformedValuesAtGivenTimeIndex(int timeIndex, DoubleUnaryOperator transformFunction);
 	
 	double[] getConditionalExpectation(double[] trinomialValues,int timeIndex);
+
+	/**
+	 * It overwrites the first elements of the given array, which are the values at timeIndex+1, with their
+	 * discounted conditional expectations at timeIndex, as getConditionalExpectation, without allocating any array.
+	 * 
+	 * @param values the values at timeIndex+1: the first getNumberOfNodesAtGivenTimeIndex(timeIndex) elements
+	 * 		  get overwritten
+	 * @param timeIndex the time index
+	 */
+	void overwriteWithConditionalExpectation(double[] values, int timeIndex);
+
+	/**
+	 * It overwrites the elements from firstNodeIndex to lastNodeIndex of the given array, which are the values at
+	 * timeIndex+1, with their discounted conditional expectations at timeIndex. The other elements are not touched.
+	 * 
+	 * @param values the values at timeIndex+1
+	 * @param timeIndex the time index
+	 * @param firstNodeIndex the first node at timeIndex whose conditional expectation is computed
+	 * @param lastNodeIndex the last node at timeIndex whose conditional expectation is computed
+	 */
+	void overwriteWithConditionalExpectation(double[] values, int timeIndex, int firstNodeIndex, int lastNodeIndex);
+
+	/**
+	 * It writes in destination the discounted conditional expectations at timeIndex of the given values at
+	 * timeIndex+1 for the nodes from firstNodeIndex to lastNodeIndex, and zero for the other nodes at timeIndex,
+	 * where the option is knocked out. If destination is values itself, only the two nodes on each side of the
+	 * window are set to zero: the others are already zero if they were zero outside the window at timeIndex+1.
+	 * 
+	 * @param values the values at timeIndex+1
+	 * @param timeIndex the time index
+	 * @param firstNodeIndex the first node at timeIndex inside the barriers
+	 * @param lastNodeIndex the last node at timeIndex inside the barriers
+	 * @param destination the array which gets overwritten: it can be values itself
+	 */
+	void writeConditionalExpectationInsideBarriers(double[] values, int timeIndex, int firstNodeIndex, int lastNodeIndex,
+			double[] destination);
+
+	/**
+	 * It returns the value of the tree model at the given time index and node, that is, the element in position
+	 * nodeIndex of getValuesAtGivenTimeIndex(timeIndex), without copying the array.
+	 * 
+	 * @param timeIndex the time index
+	 * @param nodeIndex the index of the node, from 0 (the biggest value) on
+	 * @return the value of the tree model at the given time index and node
+	 */
+	double getValueAtGivenTimeIndexAndNode(int timeIndex, int nodeIndex);
+
+	/**
+	 * It returns the number of possible values of the tree model at the given time index
+	 * 
+	 * @param timeIndex the time index
+	 * @return the number of possible values at the given time index
+	 */
+	int getNumberOfNodesAtGivenTimeIndex(int timeIndex);
 }
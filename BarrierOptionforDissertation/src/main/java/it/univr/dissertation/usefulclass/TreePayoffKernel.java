@@ -0,0 +1,127 @@
+package it.univr.dissertation.usefulclass;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * This interface represents the computation of the values of an option at the nodes of a tree at a given time, for
+ * example the payoffs at maturity, when the option is knocked out outside the barriers. Since the values of the tree
+ * are decreasing in the index of the node, the nodes inside the barriers are the ones between two indices: an
+ * implementation writes in a single loop the values f(x) for these nodes and zero for the other ones, that is,
+ * f(x) multiplied by the indicator function of the corridor.
+ * For calls and puts we have the specialised implementations CallPayoffKernel and PutPayoffKernel, where the payoff
+ * is written directly in the loop: so the loop does not call a DoubleUnaryOperator for every node, and the JIT
+ * compiler can inline and optimize it. FunctionPayoffKernel works instead with any function.
+ */
+public interface TreePayoffKernel {
+
+	/**
+	 * It writes in values the values of the option at the nodes of the tree at timeIndex: f(x) at the nodes from
+	 * firstNodeIndex to lastNodeIndex, where x is the value of the tree, and zero at the other ones.
+	 *
+	 * @param approximatingTreeModel, the tree
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node inside the barriers
+	 * @param lastNodeIndex, the last node inside the barriers
+	 * @param values, the array which gets overwritten, of length equal to the number of nodes at timeIndex
+	 */
+	void fillValuesAtGivenTimeIndex(ApproximatingTreeModelInterface approximatingTreeModel, int timeIndex,
+			int firstNodeIndex, int lastNodeIndex, double[] values);
+
+	/**
+	 * It returns the kernel of the payoff max(x-K,0) of a call
+	 * @param strike, the strike K
+	 * @return the kernel of the payoff of the call
+	 */
+	static TreePayoffKernel call(double strike) {
+		return new CallPayoffKernel(strike);
+	}
+
+	/**
+	 * It returns the kernel of the payoff max(K-x,0) of a put
+	 * @param strike, the strike K
+	 * @return the kernel of the payoff of the put
+	 */
+	static TreePayoffKernel put(double strike) {
+		return new PutPayoffKernel(strike);
+	}
+
+	/**
+	 * It returns the kernel of a general function, which is called for every node
+	 * @param function, the function f
+	 * @return the kernel of the function
+	 */
+	static TreePayoffKernel of(DoubleUnaryOperator function) {
+		return new FunctionPayoffKernel(function);
+	}
+
+	/**
+	 * The kernel of the payoff max(x-K,0) of a call.
+	 */
+	final class CallPayoffKernel implements TreePayoffKernel {
+
+		private final double strike;
+
+		CallPayoffKernel(double strike) {
+			this.strike = strike;
+		}
+
+		@Override
+		public void fillValuesAtGivenTimeIndex(ApproximatingTreeModelInterface approximatingTreeModel, int timeIndex,
+				int firstNodeIndex, int lastNodeIndex, double[] values) {
+			Arrays.fill(values, 0, Math.max(firstNodeIndex, 0), 0.0);
+			for (int nodeIndex = firstNodeIndex; nodeIndex <= lastNodeIndex; nodeIndex++) {
+				double underlyingValue = approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, nodeIndex);
+				values[nodeIndex] = underlyingValue - strike > 0 ? underlyingValue - strike : 0.0;
+			}
+			Arrays.fill(values, Math.min(lastNodeIndex + 1, values.length), values.length, 0.0);
+		}
+	}
+
+	/**
+	 * The kernel of the payoff max(K-x,0) of a put.
+	 */
+	final class PutPayoffKernel implements TreePayoffKernel {
+
+		private final double strike;
+
+		PutPayoffKernel(double strike) {
+			this.strike = strike;
+		}
+
+		@Override
+		public void fillValuesAtGivenTimeIndex(ApproximatingTreeModelInterface approximatingTreeModel, int timeIndex,
+				int firstNodeIndex, int lastNodeIndex, double[] values) {
+			Arrays.fill(values, 0, Math.max(firstNodeIndex, 0), 0.0);
+			for (int nodeIndex = firstNodeIndex; nodeIndex <= lastNodeIndex; nodeIndex++) {
+				double underlyingValue = approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, nodeIndex);
+				values[nodeIndex] = strike - underlyingValue > 0 ? strike - underlyingValue : 0.0;
+			}
+			Arrays.fill(values, Math.min(lastNodeIndex + 1, values.length), values.length, 0.0);
+		}
+	}
+
+	/**
+	 * The kernel of a general function, given as a DoubleUnaryOperator: for example the Black-Scholes price of the
+	 * option one time step before maturity, see BarrierOptionTreeModels.getValueWithSmoothedLastStep.
+	 */
+	final class FunctionPayoffKernel implements TreePayoffKernel {
+
+		private final DoubleUnaryOperator function;
+
+		FunctionPayoffKernel(DoubleUnaryOperator function) {
+			this.function = function;
+		}
+
+		@Override
+		public void fillValuesAtGivenTimeIndex(ApproximatingTreeModelInterface approximatingTreeModel, int timeIndex,
+				int firstNodeIndex, int lastNodeIndex, double[] values) {
+			Arrays.fill(values, 0, Math.max(firstNodeIndex, 0), 0.0);
+			for (int nodeIndex = firstNodeIndex; nodeIndex <= lastNodeIndex; nodeIndex++) {
+				double underlyingValue = approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, nodeIndex);
+				values[nodeIndex] = function.applyAsDouble(underlyingValue);
+			}
+			Arrays.fill(values, Math.min(lastNodeIndex + 1, values.length), values.length, 0.0);
+		}
+	}
+}
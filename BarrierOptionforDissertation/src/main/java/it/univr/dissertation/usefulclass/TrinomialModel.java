@@ -33,7 +33,10 @@ public class TrinomialModel  implements TreeModelInterface {
 	private int numberOfTimes;
 
 	//these fields will be initialized and set in private methods. For now their values is "null".
-	private double[][] values;
+	//upPowers[k]=u^k for k=0,...,2*(numberOfTimes-1) and downPowers[k]=d^k for k=0,...,numberOfTimes-1
+	//upPowers is volatile because the same model can be used by many threads, see generateValues
+	private volatile double[] upPowers;
+	private double[] downPowers;
 
 	/**
 	 * It constructs an object representing a Binomial model.
@@ -63,32 +66,32 @@ public class TrinomialModel  implements TreeModelInterface {
 
 	/*
 	 * This method is private! This is our inner implementation, behind the scenes. We don't want an user of our
-	 * class to access it. The method sets values to be a matrix whose row n represents the possible values of the
-	 * trinomial model at time index n. However, the last values of the row are zero, because at time n the trinomial
-	 * model can only take 2*n+1 values. Note that this could cause confusion if somebody is directly aware of this
-	 * method.
+	 * class to access it. The value of the trinomial model at time index n in position i is S_0*u^(2n-i)*d^n:
+	 * so instead of a matrix whose row n contains these values (most of which would be zero, and which would need
+	 * about 2*numberOfTimes^2 doubles) we only store the powers
+	 * [1 u u^2 ... u^(2*numberOfTimes-2)]
+	 * [1 d d^2 ... d^(numberOfTimes-1)]
+	 * and compute the values when we need them, see getValueAtGivenTimeIndexAndNode. In this way the memory is
+	 * linear in the number of times. The powers are computed with Math.pow, so the values are exactly the same as
+	 * the ones we would get computing S_0*Math.pow(u,2n-i)*Math.pow(d,n) directly.
+	 * The method is synchronized and checks again if the powers are there, so if many threads call it at the same
+	 * time they are computed only once. Moreover, upPowers is volatile and is set last: a thread which sees it not
+	 * null also sees the arrays completely filled, and does not need to synchronize.
 	 */
-	
-	/*
-	 * [S_0]
-	 * [S_0*u^2*d^1=S_0*u , S_0*u^1*d^1=S_0  ,S_0*u^0*d^1,0,...,0]    
-	 * [S_0*u^4*d^2=S_0*u^2 , S_0*u^3*d^2=S_0*u  ,S_0*u^2*d^2=S_0, S_0*u^1*d^2=S_0*d, S_0*u^0*d^2,0,..,0] 
-	 *	...
-	 */
-	private void generateValues() {
-		values = new double[numberOfTimes][2*numberOfTimes+1];
-		values[0][0] = initialValue;
-		int positionToFill;//it will be updated in the for loop
-		for (int numberOfTimeStepsAhead = 1; numberOfTimeStepsAhead < numberOfTimes; numberOfTimeStepsAhead++) {
-			for (int exponentOfUp = 0; exponentOfUp <= 2*numberOfTimeStepsAhead; exponentOfUp++) {
-				positionToFill=2*numberOfTimeStepsAhead-exponentOfUp;
-				/*
-				 * Note that this is stored in position ! So the first position has all ups.
-				 */
-				values[numberOfTimeStepsAhead][positionToFill] = values[0][0] * Math.pow(upFactor, exponentOfUp)*
-						Math.pow(downFactor, numberOfTimeStepsAhead);
-			}
+	private synchronized void generateValues() {
+		if (upPowers != null) {
+			return;
 		}
+		double[] powersOfUpFactor = new double[2*numberOfTimes-1];
+		double[] powersOfDownFactor = new double[numberOfTimes];
+		for (int exponent = 0; exponent < powersOfUpFactor.length; exponent++) {
+			powersOfUpFactor[exponent] = Math.pow(upFactor, exponent);
+		}
+		for (int exponent = 0; exponent < powersOfDownFactor.length; exponent++) {
+			powersOfDownFactor[exponent] = Math.pow(downFactor, exponent);
+		}
+		downPowers = powersOfDownFactor;
+		upPowers = powersOfUpFactor;
 	}
 
 
@@ -103,19 +106,20 @@ public class TrinomialModel  implements TreeModelInterface {
 	 */
 	public double[] getValuesAtGivenTimeIndex(int timeIndex) {
 		/*
-		 * Pay attention: the method generateValues() initializes the array values and sets it. This is
-		 * of course needed if we want to get those values. However, we want to do that only once!
-		 * So we check if values is null (this means "not yet initialized") and call the method only
+		 * Pay attention: the method generateValues() initializes the arrays of the powers of u and d and sets
+		 * them. This is of course needed if we want to get those values. However, we want to do that only once!
+		 * So we check if upPowers is null (this means "not yet initialized") and call the method only
 		 * in this case. 
 		 */
-		if (values == null) {
+		if (upPowers == null) {
 			generateValues();
 		}	
-		/*
-		 * We only return the first timeIndex entries! The others are zero, because the process can take
-		 * only timeIndex values at time index timeIndex.
-		 */
-		return Arrays.copyOfRange(values[timeIndex], 0, 2*timeIndex+1);
+		//the process can take only 2*timeIndex+1 values at time index timeIndex
+		double[] valuesAtGivenTimeIndex = new double[2*timeIndex+1];
+		for (int nodeIndex = 0; nodeIndex < 2*timeIndex+1; nodeIndex++) {
+			valuesAtGivenTimeIndex[nodeIndex] = getValueAtGivenTimeIndexAndNode(timeIndex, nodeIndex);
+		}
+		return valuesAtGivenTimeIndex;
 	}
 
 	/**
@@ -158,5 +162,88 @@ public class TrinomialModel  implements TreeModelInterface {
 		return conditionalExpectation;
 	}
 	
-}
 
+	/**
+	 * It overwrites the first 2*timeIndex+1 elements of trinomialValues, which are the values of (possibly a function
+	 * of) the trinomial model at time timeIndex+1, with their discounted conditional expectations at timeIndex. Since
+	 * the i-th conditional expectation only needs the elements i, i+1 and i+2, we can go from i=0 on and overwrite the
+	 * i-th element, which we do not need anymore. 
+	 * 
+	 * @param trinomialValues, values of (possibly a function of) a trinomial model at time timeIndex+1
+	 * @param timeIndex, the time index
+	 */
+	public void overwriteWithConditionalExpectation(double[] trinomialValues, int timeIndex) {
+		overwriteWithConditionalExpectation(trinomialValues, timeIndex, 0, 2*timeIndex);
+	}
+
+	/**
+	 * It overwrites the elements from firstNodeIndex to lastNodeIndex of trinomialValues, which are the values of
+	 * (possibly a function of) the trinomial model at time timeIndex+1, with their discounted conditional expectations
+	 * at timeIndex. The other elements are not touched.
+	 * 
+	 * @param trinomialValues, values of (possibly a function of) a trinomial model at time timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node for which we compute the conditional expectation
+	 * @param lastNodeIndex, the last node for which we compute the conditional expectation
+	 */
+	public void overwriteWithConditionalExpectation(double[] trinomialValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex) {
+		for (int i = firstNodeIndex; i <= lastNodeIndex; i++) {
+			trinomialValues[i] = (trinomialValues[i]*riskNeutralProbabilityUp + trinomialValues[i + 1]*riskNeutralProbabilityToStayTheSame
+					+trinomialValues[i + 2]*riskNeutralProbabilityDown)/(1+riskFreeFactor);
+		}
+	}
+
+	/**
+	 * It writes in destination the discounted conditional expectations at timeIndex of trinomialValues, which are the values
+	 * of (possibly a function of) the trinomial model at time timeIndex+1, for the nodes from firstNodeIndex to
+	 * lastNodeIndex, and zero for the other nodes at timeIndex. Everything is done in one loop over the nodes inside
+	 * the barriers, plus the zeros: so for a barrier option we go through the array only once per time.
+	 * If destination is trinomialValues itself, only two nodes on each side of the window are set to zero, as in
+	 * BarrierOptionTreeModels: the nodes inside the barriers at timeIndex-1 only look at the values near the window,
+	 * and the other ones are still zero if trinomialValues was zero outside the barriers at timeIndex+1. Otherwise, all the
+	 * other nodes at timeIndex are set to zero.
+	 * 
+	 * @param trinomialValues, values of (possibly a function of) a trinomial model at time timeIndex+1
+	 * @param timeIndex, the time index
+	 * @param firstNodeIndex, the first node inside the barriers at timeIndex
+	 * @param lastNodeIndex, the last node inside the barriers at timeIndex
+	 * @param destination, the array which gets overwritten: it can be trinomialValues itself
+	 */
+	@Override
+	public void writeConditionalExpectationInsideBarriers(double[] trinomialValues, int timeIndex, int firstNodeIndex,
+			int lastNodeIndex, double[] destination) {
+		int numberOfNodes = 2*timeIndex + 1;
+		boolean isInPlace = destination == trinomialValues;
+		Arrays.fill(destination, isInPlace ? Math.max(firstNodeIndex - 2, 0) : 0, Math.min(firstNodeIndex, numberOfNodes), 0.0);
+		for (int i = firstNodeIndex; i <= lastNodeIndex; i++) {
+			destination[i] = (trinomialValues[i]*riskNeutralProbabilityUp + trinomialValues[i + 1]*riskNeutralProbabilityToStayTheSame
+					+trinomialValues[i + 2]*riskNeutralProbabilityDown)/(1+riskFreeFactor);
+		}
+		Arrays.fill(destination, lastNodeIndex + 1, isInPlace ? Math.min(lastNodeIndex + 3, numberOfNodes) : numberOfNodes, 0.0);
+	}
+
+	/**
+	 * It returns the value of the trinomial model at the given time index and node, where the node 0 is the biggest
+	 * value. It is computed on the fly from the powers of u and d, so we do not need the matrix of all the values.
+	 * @param timeIndex, the given time index
+	 * @param nodeIndex, the index of the node
+	 * @return the value B(0)*u^(2*timeIndex-nodeIndex)*d^timeIndex
+	 */
+	public double getValueAtGivenTimeIndexAndNode(int timeIndex, int nodeIndex) {
+		if (upPowers == null) {
+			generateValues();
+		}
+		return initialValue * upPowers[2*timeIndex - nodeIndex] * downPowers[timeIndex];
+	}
+
+	/**
+	 * It returns the number of possible values of the trinomial model at the given time index, that is, 2*timeIndex+1
+	 * @param timeIndex, the given time index
+	 * @return the number of possible values at the given time index
+	 */
+	public int getNumberOfNodesAtGivenTimeIndex(int timeIndex) {
+		return 2*timeIndex + 1;
+	}
+
+}
@@ -0,0 +1,72 @@
+package it.univr.barrieroptiontests;
+
+import it.univr.dissertation.analyticformulas.MyAnalyticForumulas;
+import it.univr.dissertation.products.BarrierOptionMonteCarlo;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.BrownianMotion;
+import net.finmath.montecarlo.BrownianMotionFromMersenneRandomNumbers;
+import net.finmath.montecarlo.assetderivativevaluation.MonteCarloBlackScholesModel;
+import net.finmath.time.TimeDiscretization;
+import net.finmath.time.TimeDiscretizationFromArray;
+
+/**
+ * Here we compare the discretely monitored Monte Carlo price of a Down and Out option with the one
+ * corrected by the Brownian bridge, for a decreasing number of time steps. The reference is the
+ * analytic price of the continuously monitored option.
+ */
+public class BarrierOptionTestBrownianBridge {
+
+	public static void main(String[] args) throws CalculationException {
+
+		//option parameters
+		double upperBarrier = Long.MAX_VALUE;
+		double lowerBarrier = 90;
+		double maturity = 1.0;
+		double strike = 100;
+		double callOrPut = 1;
+		boolean isKnockOut = true;
+
+		//model (i.e., underlying) parameters
+		double initialValue = 100;
+		double riskFreeRate = 0.0;
+		double volatility = 0.3;
+
+		//simulation parameters
+		int numberOfPaths = 100000;
+		int seed = 1897;
+
+		BarrierOptionMonteCarlo discretelyMonitoredOption = new BarrierOptionMonteCarlo(maturity, strike, lowerBarrier, upperBarrier, callOrPut, 0, isKnockOut);
+
+		BarrierOptionMonteCarlo continuouslyMonitoredOption = new BarrierOptionMonteCarlo(maturity, strike, lowerBarrier, upperBarrier, callOrPut, 0, isKnockOut);
+		continuouslyMonitoredOption.setContinuousMonitoring(true);
+		continuouslyMonitoredOption.setVolatility(volatility);
+
+		double analyticPrice = MyAnalyticForumulas.blackScholesDownAndOut(initialValue, riskFreeRate, volatility, maturity, strike, lowerBarrier, callOrPut);
+		System.out.println("Analytic price: " + analyticPrice);
+		System.out.println();
+
+		int[] numbersOfTimeSteps = {500, 200, 50, 20, 10};
+
+		for (int numberOfTimeSteps : numbersOfTimeSteps) {
+
+			TimeDiscretization times = new TimeDiscretizationFromArray(0.0, numberOfTimeSteps, maturity / numberOfTimeSteps);
+			BrownianMotion ourDriver = new BrownianMotionFromMersenneRandomNumbers(times, 1 /* numberOfFactors */, numberOfPaths, seed);
+			MonteCarloBlackScholesModel blackScholesProcess = new MonteCarloBlackScholesModel(initialValue, riskFreeRate, volatility, ourDriver);
+
+			long start = System.currentTimeMillis();
+			double discretePrice = discretelyMonitoredOption.getValue(blackScholesProcess);
+			long end = System.currentTimeMillis();
+
+			long startBridge = System.currentTimeMillis();
+			double bridgePrice = continuouslyMonitoredOption.getValue(blackScholesProcess);
+			long endBridge = System.currentTimeMillis();
+
+			System.out.println("Number of time steps: " + numberOfTimeSteps);
+			System.out.println("Discrete monitoring: " + discretePrice + ", error " + (discretePrice - analyticPrice)
+					+ ", time " + (end - start) + " ms");
+			System.out.println("Brownian bridge:     " + bridgePrice + ", error " + (bridgePrice - analyticPrice)
+					+ ", time " + (endBridge - startBridge) + " ms");
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package it.univr.barrieroptiontests;
+
+import it.univr.dissertation.analyticformulas.MyAnalyticForumulas;
+import it.univr.dissertation.products.BarrierOptionFiniteDifferences;
+import it.univr.dissertation.products.BarrierOptionMonteCarlo;
+import net.finmath.exception.CalculationException;
+import net.finmath.finitedifference.models.FDMBlackScholesModel;
+import net.finmath.finitedifference.models.FiniteDifference1DModel;
+import net.finmath.interpolation.RationalFunctionInterpolation;
+import net.finmath.interpolation.RationalFunctionInterpolation.ExtrapolationMethod;
+import net.finmath.interpolation.RationalFunctionInterpolation.InterpolationMethod;
+import net.finmath.montecarlo.BrownianMotion;
+import net.finmath.montecarlo.BrownianMotionFromMersenneRandomNumbers;
+import net.finmath.montecarlo.assetderivativevaluation.MonteCarloBlackScholesModel;
+import net.finmath.time.TimeDiscretization;
+import net.finmath.time.TimeDiscretizationFromArray;
+
+/**
+ * Here we compare the finite difference price of a discretely monitored Down and Out put and call, see
+ * BarrierOptionFiniteDifferences.setMonitoringTimes, with the Monte Carlo price where the barrier is checked
+ * at the same times, for a decreasing number of monitoring times. The price of the continuously monitored option
+ * is given as a reference. For the call the upper end of the grid is where the option is worth as the vanilla
+ * one, see BarrierOptionFiniteDifferences.getValueAtUpperBoundary.
+ */
+public class BarrierOptionTestFDMDiscreteMonitoring {
+
+	public static void main(String[] args) throws CalculationException {
+
+		//option parameters
+		double upperBarrier = Long.MAX_VALUE;
+		double lowerBarrier = 90;
+		double maturity = 1.0;
+		double strike = 100;
+		boolean isKnockOut = true;
+		double theta = 0.5;
+
+		//model (i.e., underlying) parameters
+		double initialValue = 100;
+		double riskFreeRate = 0.03;
+		double volatility = 0.25;
+
+		//Finite difference discretization parameters
+		final int numTimesteps = 400;
+		final int numSpacesteps = 800;
+		final int numStandardDeviations = 5;
+
+		//simulation parameters
+		int numberOfPaths = 100000;
+		int seed = 1897;
+
+		final FiniteDifference1DModel model = new FDMBlackScholesModel(numTimesteps, numSpacesteps,
+				numStandardDeviations, strike, theta, initialValue, riskFreeRate, volatility);
+
+		//first the put, whose lower end of the grid is below the barrier, then the call, whose upper end has no barrier
+		double[] callOrPutSigns = {-1, 1};
+
+		for (double callOrPut : callOrPutSigns) {
+
+			double analyticPrice = MyAnalyticForumulas.blackScholesDownAndOut(initialValue, riskFreeRate, volatility, maturity, strike, lowerBarrier, callOrPut);
+			System.out.println((callOrPut == 1 ? "Call. " : "Put. ") + "Analytic price with continuous monitoring: " + analyticPrice);
+			System.out.println();
+
+			int[] numbersOfMonitoringTimes = {252, 52, 12, 4};
+
+			for (int numberOfMonitoringTimes : numbersOfMonitoringTimes) {
+
+				double monitoringStep = maturity / numberOfMonitoringTimes;
+				double[] monitoringTimes = new double[numberOfMonitoringTimes];
+				for (int i = 0; i < numberOfMonitoringTimes; i++) {
+					monitoringTimes[i] = (i + 1) * monitoringStep;
+				}
+
+				BarrierOptionFiniteDifferences optionValueFDCalculator = new BarrierOptionFiniteDifferences(maturity, strike, lowerBarrier, upperBarrier, theta, callOrPut);
+				optionValueFDCalculator.setMonitoringTimes(monitoringTimes);
+				optionValueFDCalculator.setRannacherSteps(2);
+				optionValueFDCalculator.setNonUniformGrid(true);
+
+				long start = System.currentTimeMillis();
+				final double[][] returnedValues = optionValueFDCalculator.getValue(0.0, model);
+				final RationalFunctionInterpolation interpolation = new RationalFunctionInterpolation(returnedValues[0], returnedValues[1], InterpolationMethod.LINEAR, ExtrapolationMethod.DEFAULT);
+				double finiteDifferencePrice = interpolation.getValue(initialValue);
+				long end = System.currentTimeMillis();
+
+				//the barrier is checked at the times of the time discretization, that is, at the monitoring times
+				TimeDiscretization times = new TimeDiscretizationFromArray(0.0, numberOfMonitoringTimes, monitoringStep);
+				BrownianMotion ourDriver = new BrownianMotionFromMersenneRandomNumbers(times, 1 /* numberOfFactors */, numberOfPaths, seed);
+				MonteCarloBlackScholesModel blackScholesProcess = new MonteCarloBlackScholesModel(initialValue, riskFreeRate, volatility, ourDriver);
+				BarrierOptionMonteCarlo monteCarloOption = new BarrierOptionMonteCarlo(maturity, strike, lowerBarrier, upperBarrier, callOrPut, 0, isKnockOut);
+
+				long startMonteCarlo = System.currentTimeMillis();
+				double monteCarloPrice = monteCarloOption.getValue(blackScholesProcess);
+				long endMonteCarlo = System.currentTimeMillis();
+
+				System.out.println("Number of monitoring times: " + numberOfMonitoringTimes);
+				System.out.println("Finite differences: " + finiteDifferencePrice + ", time steps "
+						+ optionValueFDCalculator.getNumberOfTimeSteps() + ", time " + (end - start) + " ms");
+				System.out.println("Monte Carlo:        " + monteCarloPrice + ", time " + (endMonteCarlo - startMonteCarlo) + " ms");
+				System.out.println();
+			}
+		}
+	}
+}
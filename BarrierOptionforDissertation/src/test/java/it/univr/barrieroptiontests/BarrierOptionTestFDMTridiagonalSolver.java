@@ -0,0 +1,80 @@
+package it.univr.barrieroptiontests;
+
+import it.univr.dissertation.analyticformulas.MyAnalyticForumulas;
+import it.univr.dissertation.products.BarrierOptionFiniteDifferences;
+import net.finmath.finitedifference.models.FDMBlackScholesModel;
+import net.finmath.finitedifference.models.FiniteDifference1DModel;
+import net.finmath.interpolation.RationalFunctionInterpolation;
+import net.finmath.interpolation.RationalFunctionInterpolation.ExtrapolationMethod;
+import net.finmath.interpolation.RationalFunctionInterpolation.InterpolationMethod;
+
+/**
+ * Here we compare the finite difference price of a Down and Out option when the steps of the theta method are
+ * solved with the LU decomposition of the dense matrices (the default) and with the Thomas algorithm, see
+ * BarrierOptionFiniteDifferences.setTridiagonalSolver. The two prices must be the same up to round-off, for
+ * every number of space steps, while the time needed by the Thomas algorithm grows much slower.
+ */
+public class BarrierOptionTestFDMTridiagonalSolver {
+
+	public static void main(String[] args) {
+
+		//option parameters
+		double upperBarrier = Long.MAX_VALUE;
+		double lowerBarrier = 90;
+		double maturity = 1.0;
+		double strike = 100;
+		double callOrPut = 1;
+		double theta = 0.5;
+
+		//model (i.e., underlying) parameters
+		double initialValue = 100;
+		double riskFreeRate = 0.03;
+		double volatility = 0.25;
+
+		//Finite difference discretization parameters
+		final int numTimesteps = 100;
+		final int numStandardDeviations = 5;
+
+		double analyticPrice = MyAnalyticForumulas.blackScholesDownAndOut(initialValue, riskFreeRate, volatility, maturity, strike, lowerBarrier, callOrPut);
+		System.out.println("Analytic price: " + analyticPrice);
+		System.out.println();
+
+		int[] numbersOfSpaceSteps = {100, 200, 400};
+
+		for (int numSpacesteps : numbersOfSpaceSteps) {
+
+			final FiniteDifference1DModel model = new FDMBlackScholesModel(numTimesteps, numSpacesteps,
+					numStandardDeviations, strike, theta, initialValue, riskFreeRate, volatility);
+
+			BarrierOptionFiniteDifferences denseOption = new BarrierOptionFiniteDifferences(maturity, strike, lowerBarrier, upperBarrier, theta, callOrPut);
+
+			long startDense = System.currentTimeMillis();
+			final double[][] denseValues = denseOption.getValue(0.0, model);
+			long endDense = System.currentTimeMillis();
+
+			BarrierOptionFiniteDifferences tridiagonalOption = new BarrierOptionFiniteDifferences(maturity, strike, lowerBarrier, upperBarrier, theta, callOrPut);
+			tridiagonalOption.setTridiagonalSolver(true);
+
+			long startTridiagonal = System.currentTimeMillis();
+			final double[][] tridiagonalValues = tridiagonalOption.getValue(0.0, model);
+			long endTridiagonal = System.currentTimeMillis();
+
+			final RationalFunctionInterpolation denseInterpolation = new RationalFunctionInterpolation(denseValues[0], denseValues[1], InterpolationMethod.LINEAR, ExtrapolationMethod.DEFAULT);
+			final RationalFunctionInterpolation tridiagonalInterpolation = new RationalFunctionInterpolation(tridiagonalValues[0], tridiagonalValues[1], InterpolationMethod.LINEAR, ExtrapolationMethod.DEFAULT);
+			double densePrice = denseInterpolation.getValue(initialValue);
+			double tridiagonalPrice = tridiagonalInterpolation.getValue(initialValue);
+
+			//the largest difference at the nodes of the grid, which is the same for the two solvers
+			double maximumDifference = 0.0;
+			for (int i = 0; i < denseValues[1].length; i++) {
+				maximumDifference = Math.max(maximumDifference, Math.abs(denseValues[1][i] - tridiagonalValues[1][i]));
+			}
+
+			System.out.println("Number of space steps: " + numSpacesteps);
+			System.out.println("Dense LU:   " + densePrice + ", time " + (endDense - startDense) + " ms");
+			System.out.println("Thomas:     " + tridiagonalPrice + ", time " + (endTridiagonal - startTridiagonal) + " ms");
+			System.out.println("Difference: " + (tridiagonalPrice - densePrice) + ", largest difference on the grid " + maximumDifference);
+			System.out.println();
+		}
+	}
+}
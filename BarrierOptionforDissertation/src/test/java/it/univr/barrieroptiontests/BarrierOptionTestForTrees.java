@@ -5,6 +5,8 @@ import java.util.function.DoubleUnaryOperator;
 
 import it.univr.dissertation.analyticformulas.MyAnalyticForumulas;
 import it.univr.dissertation.products.BarrierOptionTreeModels;
+import it.univr.dissertation.products.BarrierOptionTreeRichardsonExtrapolation;
+import it.univr.dissertation.usefulclass.BarrierMatchingTrinomialModel;
 import it.univr.dissertation.usefulclass.CoxRossRubinsteinModel;
 import net.finmath.exception.CalculationException;
 import net.finmath.functions.AnalyticFormulas;
@@ -55,7 +57,13 @@ public class BarrierOptionTestForTrees {
 					volatility, maturity, (int) numberOfTimesForFunction);		
 			return optionValueTreeCalculator.getValue(ourModelForFunction2);
 		};
-		
+
+		//here the number of times can be any: a layer of nodes of the trinomial model is put on the lower barrier
+		DoubleUnaryOperator numberOfTimesToPriceBarrierMatchingModel = (numberOfTimesForFunction) -> {
+			BarrierMatchingTrinomialModel ourModelForFunction3 = new BarrierMatchingTrinomialModel(initialValue, riskFreeRate,
+					volatility, maturity, (int) numberOfTimesForFunction, lowerBarrier);
+			return optionValueTreeCalculator.getValue(ourModelForFunction3);
+		};
 		
 		DoubleUnaryOperator dummyFunctionBlackScholesPrice = (numberOfTimesForFunction) -> {
 			return MyAnalyticForumulas.blackScholesDownAndOut(initialValue,riskFreeRate,volatility, maturity,strike,lowerBarrier, callOrPut);
@@ -90,6 +98,17 @@ public class BarrierOptionTestForTrees {
 		System.out.println("Value option for ideal number of times plus one " +
 
 		numberOfTimesToPriceCoxRossModel.applyAsDouble(idealNumberOfTimeSteps+2));
+
+		System.out.println("Value option for the barrier matching trinomial model with " + numberOfTime + " times " +
+
+		numberOfTimesToPriceBarrierMatchingModel.applyAsDouble(numberOfTime));
+
+		//Richardson extrapolation of the prices of some small trees
+		BarrierOptionTreeRichardsonExtrapolation extrapolatedTreeCalculator = new BarrierOptionTreeRichardsonExtrapolation(maturity,
+				strike, lowerBarrier, upperBarrier, iscall, initialValue, riskFreeRate, volatility);
+		double[] extrapolatedValueAndError = extrapolatedTreeCalculator.getValueAndError();
+		System.out.println("Extrapolated value option " + extrapolatedValueAndError[0] + " with estimated error "
+				+ extrapolatedValueAndError[1] + ", numbers of time steps " + Arrays.toString(extrapolatedTreeCalculator.getNumbersOfTimeSteps()));
 		//we now plot the functions from a minimum number of points to a maximum number of points
 				int maxNumberOfTimes = 400;
 				int minNumberOfTimes = 100;
@@ -97,6 +116,7 @@ public class BarrierOptionTestForTrees {
 				final Plot2D plot = new Plot2D(minNumberOfTimes, maxNumberOfTimes, (maxNumberOfTimes-minNumberOfTimes+2)/2,
 					    Arrays.asList(
 					        new Named<DoubleUnaryOperator>("Cox-Ross-Rubinstein (initial=" + initialValue + ", vol=" + volatility + ", Ubarr=" + upperBarrier + ", Dbarr=" + lowerBarrier + ")", numberOfTimesToPriceCoxRossModel),
+					        new Named<DoubleUnaryOperator>("Barrier matching trinomial", numberOfTimesToPriceBarrierMatchingModel),
 					        new Named<DoubleUnaryOperator>("Black-Scholes", dummyFunctionBlackScholesPrice)
 					    )
 					);
@@ -0,0 +1,101 @@
+package it.univr.barrieroptiontests;
+
+import it.univr.dissertation.products.BarrierOptionTreeModels;
+import it.univr.dissertation.usefulclass.ApproximatingTreeModelInterface;
+import it.univr.dissertation.usefulclass.BarrierMatchingTrinomialModel;
+import it.univr.dissertation.usefulclass.CoxRossRubinsteinModel;
+
+/**
+ * Here we compare the tree price of a knock out option given by getValue of BarrierOptionTreeModels, where every step
+ * backward in the tree writes the conditional expectations inside the barriers and the zeros outside them in a single
+ * call of writeConditionalExpectationInsideBarriers, with the one we get as it was done before: first the conditional
+ * expectations with overwriteWithConditionalExpectation, and then the zeros at two nodes per side of the barriers in
+ * a second loop. The two prices must be exactly the same, for the binomial and for the trinomial trees.
+ */
+public class BarrierOptionTestForTreesFusedRollback {
+
+	public static void main(String[] args) {
+
+		//option parameters
+		double upperBarrier = 130;
+		double lowerBarrier = 90;
+		double maturity = 1.0;
+		double strike = 100;
+		boolean iscall = true;
+
+		//model (i.e., underlying) parameters
+		double initialValue = 100;
+		double riskFreeRate = 0.03;
+		double volatility = 0.25;
+		int numberOfTimes = 2000;
+
+		BarrierOptionTreeModels optionValueTreeCalculator = new BarrierOptionTreeModels(maturity, strike, lowerBarrier, upperBarrier, iscall);
+
+		ApproximatingTreeModelInterface[] ourModels = {
+				new CoxRossRubinsteinModel(initialValue, riskFreeRate, volatility, maturity, numberOfTimes),
+				new BarrierMatchingTrinomialModel(initialValue, riskFreeRate, volatility, maturity, numberOfTimes, lowerBarrier)
+		};
+		String[] namesOfModels = {"Cox-Ross-Rubinstein", "Barrier matching trinomial"};
+
+		for (int modelIndex = 0; modelIndex < ourModels.length; modelIndex++) {
+			ApproximatingTreeModelInterface ourModel = ourModels[modelIndex];
+
+			double fusedPrice = optionValueTreeCalculator.getValue(ourModel);
+			double separatePrice = getValueWithSeparateZeros(ourModel, maturity, strike, lowerBarrier, upperBarrier, iscall ? 1 : -1);
+
+			System.out.println(namesOfModels[modelIndex] + " with " + numberOfTimes + " times");
+			System.out.println("Fused rollback:    " + fusedPrice);
+			System.out.println("Separate rollback: " + separatePrice);
+			System.out.println("Difference: " + (fusedPrice - separatePrice));
+			System.out.println();
+		}
+	}
+
+	/*
+	 * It goes backward in the tree as BarrierOptionTreeModels did before the fused rollback: at every time the
+	 * conditional expectations overwrite the values only at the nodes inside the barriers, and then the two nodes per
+	 * side outside the barriers, which still have the values of the next time, are set to zero.
+	 */
+	private static double getValueWithSeparateZeros(ApproximatingTreeModelInterface approximatingTreeModel, double maturity,
+			double strike, double lowerBarrier, double upperBarrier, double callOrPutSign) {
+
+		int numberOfTimes = (int) Math.round(maturity / approximatingTreeModel.getTimeStep());
+
+		//the payoff at the nodes inside the barriers at maturity, zero at the other ones
+		double[] optionValues = new double[approximatingTreeModel.getNumberOfNodesAtGivenTimeIndex(numberOfTimes)];
+		for (int nodeIndex = 0; nodeIndex < optionValues.length; nodeIndex++) {
+			double underlyingValue = approximatingTreeModel.getValueAtGivenTimeIndexAndNode(numberOfTimes, nodeIndex);
+			if (underlyingValue > lowerBarrier && underlyingValue < upperBarrier) {
+				optionValues[nodeIndex] = Math.max((underlyingValue - strike) * callOrPutSign, 0.0);
+			}
+		}
+
+		for (int timeIndex = numberOfTimes - 1; timeIndex >= 0; timeIndex--) {
+
+			//the nodes at timeIndex inside the barriers: the values of the underlying are decreasing in the index
+			int firstNodeIndex = 0;
+			int lastNodeIndex = approximatingTreeModel.getNumberOfNodesAtGivenTimeIndex(timeIndex) - 1;
+			while (firstNodeIndex <= lastNodeIndex
+					&& approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, firstNodeIndex) >= upperBarrier) {
+				firstNodeIndex++;
+			}
+			while (lastNodeIndex >= firstNodeIndex
+					&& approximatingTreeModel.getValueAtGivenTimeIndexAndNode(timeIndex, lastNodeIndex) <= lowerBarrier) {
+				lastNodeIndex--;
+			}
+			if (firstNodeIndex > lastNodeIndex) {
+				return 0.0;
+			}
+
+			approximatingTreeModel.overwriteWithConditionalExpectation(optionValues, timeIndex, firstNodeIndex, lastNodeIndex);
+			for (int nodeIndex = Math.max(firstNodeIndex - 2, 0); nodeIndex < firstNodeIndex; nodeIndex++) {
+				optionValues[nodeIndex] = 0.0;
+			}
+			for (int nodeIndex = lastNodeIndex + 1; nodeIndex <= Math.min(lastNodeIndex + 2, optionValues.length - 1); nodeIndex++) {
+				optionValues[nodeIndex] = 0.0;
+			}
+		}
+		return optionValues[0];
+	}
+
+}
@@ -0,0 +1,66 @@
+package it.univr.barrieroptiontests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.univr.dissertation.products.BarrierOptionTreeModels;
+import it.univr.dissertation.products.BarrierOptionTreeModelsPortfolio;
+import it.univr.dissertation.usefulclass.CoxRossRubinsteinModel;
+
+/**
+ * Here we compare the tree prices of a portfolio of knock out options computed by BarrierOptionTreeModelsPortfolio,
+ * which values the options with the same maturity and barriers together, with the ones given by the getValue of
+ * every option. The two prices of every option must be exactly the same.
+ */
+public class BarrierOptionTestForTreesPortfolio {
+
+	public static void main(String[] args) {
+
+		//option parameters: calls and puts with different strikes, on two couples of barriers
+		double maturity = 1.0;
+		double[] strikes = {90, 95, 100, 105, 110};
+		double[][] lowerAndUpperBarriers = {{90, Long.MAX_VALUE}, {80, 130}};
+
+		//model (i.e., underlying) parameters
+		double initialValue = 100;
+		double riskFreeRate = 0.03;
+		double volatility = 0.25;
+		int numberOfTimes = 1000;
+
+		List<BarrierOptionTreeModels> options = new ArrayList<BarrierOptionTreeModels>();
+		for (double[] barriers : lowerAndUpperBarriers) {
+			for (double strike : strikes) {
+				options.add(new BarrierOptionTreeModels(maturity, strike, barriers[0], barriers[1], true));
+				options.add(new BarrierOptionTreeModels(maturity, strike, barriers[0], barriers[1], false));
+			}
+		}
+
+		CoxRossRubinsteinModel ourModel = new CoxRossRubinsteinModel(initialValue, riskFreeRate, volatility, maturity, numberOfTimes);
+		//the tree generates its values the first time they are asked: we do it here, so that it is not in the times below
+		ourModel.getValueAtGivenTimeIndexAndNode(0, 0);
+
+		BarrierOptionTreeModelsPortfolio portfolio = new BarrierOptionTreeModelsPortfolio(options);
+		long startPortfolio = System.currentTimeMillis();
+		double[] portfolioPrices = portfolio.getValues(ourModel);
+		long endPortfolio = System.currentTimeMillis();
+
+		double[] singlePrices = new double[options.size()];
+		long startSingle = System.currentTimeMillis();
+		for (int optionIndex = 0; optionIndex < options.size(); optionIndex++) {
+			singlePrices[optionIndex] = options.get(optionIndex).getValue(ourModel);
+		}
+		long endSingle = System.currentTimeMillis();
+
+		double maximumDifference = 0.0;
+		for (int optionIndex = 0; optionIndex < options.size(); optionIndex++) {
+			double difference = portfolioPrices[optionIndex] - singlePrices[optionIndex];
+			maximumDifference = Math.max(maximumDifference, Math.abs(difference));
+			System.out.println("Option " + optionIndex + ": portfolio " + portfolioPrices[optionIndex] + ", getValue "
+					+ singlePrices[optionIndex] + ", difference " + difference);
+		}
+		System.out.println();
+		System.out.println("Largest difference: " + maximumDifference);
+		System.out.println("Time of the portfolio " + (endPortfolio - startPortfolio) + " ms, time of getValue for every option "
+				+ (endSingle - startSingle) + " ms");
+	}
+}
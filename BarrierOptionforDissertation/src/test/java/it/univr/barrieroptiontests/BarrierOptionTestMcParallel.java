@@ -0,0 +1,81 @@
+package it.univr.barrieroptiontests;
+
+import it.univr.dissertation.analyticformulas.MyAnalyticForumulas;
+import it.univr.dissertation.products.BarrierOptionMonteCarlo;
+import it.univr.dissertation.products.BarrierOptionMonteCarloParallelValuation;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.BrownianMotion;
+import net.finmath.montecarlo.BrownianMotionFromMersenneRandomNumbers;
+import net.finmath.montecarlo.assetderivativevaluation.MonteCarloBlackScholesModel;
+import net.finmath.montecarlo.assetderivativevaluation.models.BlackScholesModel;
+import net.finmath.time.TimeDiscretization;
+import net.finmath.time.TimeDiscretizationFromArray;
+
+/**
+ * Here we compare the Monte Carlo price of a Down and Out option computed by a single simulation with the one
+ * computed by BarrierOptionMonteCarloParallelValuation, whose paths are split in chunks valued in parallel.
+ * The two prices are computed with different paths, so they must differ by a few standard errors at most.
+ * The parallel price is also computed with a single thread, in order to check that it does not depend on the
+ * number of threads.
+ */
+public class BarrierOptionTestMcParallel {
+
+	public static void main(String[] args) throws CalculationException {
+
+		//option parameters
+		double upperBarrier = Long.MAX_VALUE;
+		double lowerBarrier = 90;
+		double maturity = 1.0;
+		double strike = 100;
+		double callOrPut = 1;
+		boolean isKnockOut = true;
+
+		//model (i.e., underlying) parameters
+		double initialValue = 100;
+		double riskFreeRate = 0.03;
+		double volatility = 0.25;
+
+		//simulation parameters
+		int numberOfTimeSteps = 252;
+		int numberOfPaths = 200000;
+		int numberOfPathsPerChunk = 10000;
+		int seed = 1897;
+
+		TimeDiscretization times = new TimeDiscretizationFromArray(0.0, numberOfTimeSteps, maturity / numberOfTimeSteps);
+		BarrierOptionMonteCarlo option = new BarrierOptionMonteCarlo(maturity, strike, lowerBarrier, upperBarrier, callOrPut, 0, isKnockOut);
+
+		double analyticPrice = MyAnalyticForumulas.blackScholesDownAndOut(initialValue, riskFreeRate, volatility, maturity, strike, lowerBarrier, callOrPut);
+		System.out.println("Analytic price with continuous monitoring: " + analyticPrice);
+		System.out.println();
+
+		//the sequential valuation: one Brownian motion with all the paths
+		BrownianMotion ourDriver = new BrownianMotionFromMersenneRandomNumbers(times, 1 /* numberOfFactors */, numberOfPaths, seed);
+		MonteCarloBlackScholesModel blackScholesProcess = new MonteCarloBlackScholesModel(initialValue, riskFreeRate, volatility, ourDriver);
+
+		long startSequential = System.currentTimeMillis();
+		double sequentialPrice = option.getValue(blackScholesProcess);
+		long endSequential = System.currentTimeMillis();
+
+		//the parallel valuation: the paths are split in chunks, each one with its own Brownian motion
+		BarrierOptionMonteCarloParallelValuation parallelValuation = new BarrierOptionMonteCarloParallelValuation(option,
+				new BlackScholesModel(initialValue, riskFreeRate, volatility), times, numberOfPaths, numberOfPathsPerChunk);
+
+		long startParallel = System.currentTimeMillis();
+		double[] parallelPriceAndError = parallelValuation.getValueAndStandardError();
+		long endParallel = System.currentTimeMillis();
+
+		parallelValuation.setParallelism(1);
+		long startOneThread = System.currentTimeMillis();
+		double oneThreadPrice = parallelValuation.getValue();
+		long endOneThread = System.currentTimeMillis();
+
+		System.out.println("Sequential:             " + sequentialPrice + ", time " + (endSequential - startSequential) + " ms");
+		System.out.println("Parallel:               " + parallelPriceAndError[0] + " with standard error " + parallelPriceAndError[1]
+				+ ", time " + (endParallel - startParallel) + " ms with " + Runtime.getRuntime().availableProcessors() + " threads");
+		System.out.println("Parallel with 1 thread: " + oneThreadPrice + ", time " + (endOneThread - startOneThread) + " ms");
+		System.out.println();
+		System.out.println("Difference between parallel and sequential: " + (parallelPriceAndError[0] - sequentialPrice)
+				+ ", that is " + (parallelPriceAndError[0] - sequentialPrice) / parallelPriceAndError[1] + " standard errors");
+		System.out.println("Difference between all the threads and 1 thread: " + (parallelPriceAndError[0] - oneThreadPrice));
+	}
+}